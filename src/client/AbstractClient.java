@@ -1,14 +1,28 @@
 package client;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DeflaterOutputStream;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.InflaterInputStream;
 
 /**
  * The basic client for humans.
@@ -20,8 +34,86 @@ abstract public class AbstractClient implements Runnable, AutoCloseable {
 	private Socket clientSocket = null;
 
 	// Read/Write to server
-	private BufferedReader netIn = null;
-	private BufferedWriter netOut = null;
+	private InputStream socketIn = null;
+	private DataInputStream netIn = null;
+	private OutputStream netOut = null;
+
+	private static final byte[] LINE_SEPARATOR = System.getProperty(
+			"line.separator").getBytes();
+
+	/**
+	 * The PROTOCOL features to ask the server for once started
+	 */
+	private final LinkedHashSet<String> requestedFeatures = new LinkedHashSet<String>();
+
+	/**
+	 * The features the server has agreed to
+	 */
+	private volatile Set<String> features = Collections.emptySet();
+
+	/**
+	 * Set once the server has agreed to the binary protocol
+	 */
+	private volatile boolean binary = false;
+
+	/**
+	 * Commands waiting for the writer thread, which is the only one writing
+	 * to the server
+	 */
+	private final ConcurrentLinkedQueue<String> outgoing = new ConcurrentLinkedQueue<String>();
+
+	/**
+	 * Set while a LOOK is waiting in the queue, a second one would get the
+	 * same answer
+	 */
+	private final AtomicBoolean lookQueued = new AtomicBoolean(false);
+
+	/**
+	 * Set while waiting for the server's answer to our PROTOCOL request,
+	 * which decides how the commands have to be encoded. The writer holds
+	 * them back meanwhile.
+	 */
+	private volatile boolean negotiating = false;
+
+	/**
+	 * Set once the server has agreed to tagged (pipelined) commands, and the
+	 * sequence number of the last command tagged
+	 */
+	private volatile boolean sequenced = false;
+	private int sequence = 0;
+
+	/**
+	 * The token of our player's session, if the server keeps players for
+	 * resuming, and the token of the session to resume once started
+	 */
+	private volatile String sessionToken = null;
+	private String resumeToken = null;
+
+	/**
+	 * The sequence number of the command the message being handled responds
+	 * to, -1 if it is not a tagged response
+	 */
+	private int responseSequence = -1;
+
+	/**
+	 * Lines unpacked from a binary frame which have not been received yet
+	 */
+	private final ArrayDeque<String> receivedLines = new ArrayDeque<String>();
+
+	/**
+	 * When the message being received had arrived, and when the handler of
+	 * the last message returned (both System.nanoTime)
+	 */
+	private long arrivedAt = 0;
+	private long handledAt = 0;
+
+	/**
+	 * Messages handled, the total and longest time they waited on the client
+	 * before their handler was called
+	 */
+	private final AtomicLong handledMessages = new AtomicLong();
+	private final AtomicLong waitNanos = new AtomicLong();
+	private final AtomicLong maxWaitNanos = new AtomicLong();
 
 	/**
 	 * Protects against multiple calls of close and start
@@ -29,6 +121,7 @@ abstract public class AbstractClient implements Runnable, AutoCloseable {
 	private volatile AtomicBoolean active = new AtomicBoolean(false);
 
 	Thread netReaderThread = null;
+	Thread netWriterThread = null;
 
 	/**
 	 * Create a new client using a server address and port to instantiate the
@@ -43,6 +136,12 @@ abstract public class AbstractClient implements Runnable, AutoCloseable {
 			IOException {
 		clientSocket = new Socket(host, port);
 		netReaderThread = new Thread(this);
+		netWriterThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeQueued();
+			}
+		});
 	}
 
 	final public boolean isActive() {
@@ -50,27 +149,194 @@ abstract public class AbstractClient implements Runnable, AutoCloseable {
 	}
 
 	/**
-	 * The main responsible for receiving handling server messages
+	 * Asks the server for the compact binary protocol once started. Falls
+	 * back to text if the server does not support it.
+	 * 
+	 * @param useBinary
+	 */
+	public void setBinary(boolean useBinary) {
+		requestFeature("BINARY", useBinary);
+	}
+
+	/**
+	 * Asks the server to answer LOOK with a LOOKDELTA whenever that is
+	 * smaller than a full LOOKREPLY, see handleLookDelta
+	 * 
+	 * @param useDelta
+	 */
+	public void setDeltaLook(boolean useDelta) {
+		requestFeature("DELTA", useDelta);
+	}
+
+	/**
+	 * Asks the server to send the new view whenever something we can see
+	 * changes, instead of CHANGE (which we would have to answer with LOOK)
+	 * 
+	 * @param usePush
+	 */
+	public void setPushViews(boolean usePush) {
+		requestFeature("PUSH", usePush);
+	}
+
+	/**
+	 * Asks the server to compress the connection in both directions. Saves
+	 * bandwidth on large views at the cost of some CPU time and latency, so
+	 * it is best left off on a LAN.
+	 * 
+	 * @param useCompression
+	 */
+	public void setCompression(boolean useCompression) {
+		requestFeature("DEFLATE", useCompression);
+	}
+
+	/**
+	 * Asks the server to tag every response with the sequence number of its
+	 * command, so that many commands may be sent without waiting for their
+	 * responses (see getSentSequence and getResponseSequence). The server
+	 * still carries them out one by one, in order.
+	 * 
+	 * @param usePipelining
+	 */
+	public void setPipelining(boolean usePipelining) {
+		requestFeature("SEQ", usePipelining);
+	}
+
+	/**
+	 * Asks the server, once started, for the player of an earlier connection
+	 * instead of a new one, see getSessionToken and handleResumed
+	 * 
+	 * @param token
+	 *            the session token of the earlier connection, null for a new
+	 *            player
+	 */
+	public void setResumeToken(String token) {
+		if (isActive())
+			throw new RuntimeException("Already started!");
+		resumeToken = token;
+	}
+
+	/**
+	 * @return the token which lets a later connection resume our player,
+	 *         null if the server has not sent one
+	 */
+	final public String getSessionToken() {
+		return sessionToken;
+	}
+
+	/**
+	 * @return the sequence number of the last command written, 0 if none has
+	 *         been tagged (commands sent before the server has agreed to
+	 *         pipelining are tagged once they are written)
+	 */
+	synchronized final protected int getSentSequence() {
+		return sequence;
+	}
+
+	/**
+	 * @return the sequence number of the command whose response is being
+	 *         handled, -1 if the message being handled is not a response
+	 */
+	final protected int getResponseSequence() {
+		return responseSequence;
+	}
+
+	private void requestFeature(String feature, boolean request) {
+		if (isActive())
+			throw new RuntimeException("Already started!");
+		if (request)
+			requestedFeatures.add(feature);
+		else
+			requestedFeatures.remove(feature);
+	}
+
+	/**
+	 * @return whether the binary protocol is in use
+	 */
+	final public boolean isBinary() {
+		return binary;
+	}
+
+	/**
+	 * @param feature
+	 * @return whether the server has agreed to use the given feature
+	 */
+	final public boolean hasFeature(String feature) {
+		return features.contains(feature);
+	}
+
+	/**
+	 * @return the number of messages from the server handled so far
+	 */
+	final public long getHandledMessages() {
+		return handledMessages.get();
+	}
+
+	/**
+	 * @return the mean time a message waited on the client before it was
+	 *         handled, in nanoseconds
+	 */
+	final public long getMeanMessageWaitNanos() {
+		long count = handledMessages.get();
+		return count == 0 ? 0 : waitNanos.get() / count;
+	}
+
+	/**
+	 * @return the longest time a message waited on the client before it was
+	 *         handled, in nanoseconds
+	 */
+	final public long getMaxMessageWaitNanos() {
+		return maxWaitNanos.get();
+	}
+
+	/**
+	 * The main responsible for receiving handling server messages. Each
+	 * message is handled as soon as it is complete, the reads block until it
+	 * is.
 	 */
 	@Override
 	public void run() {
 		try {
 			while (true) {
 				// Handle server output
-				handleServerMessage(receive());
-				Thread.sleep(50);
+				String msg = receive();
+				recordWait(System.nanoTime() - arrivedAt);
+				handleServerMessage(msg);
+				handledAt = System.nanoTime();
 			}
 		} catch (IOException ioe) {
-			ioe.printStackTrace();
-			close();
+			// A blocked read fails when we close the connection ourselves
+			connectionLost(ioe);
 		} catch (RuntimeException re) {
 			re.printStackTrace();
 			close();
-		} catch (InterruptedException ie) {
-			// Break out of the loop normally
 		}
 	}
 
+	/**
+	 * Closes the connection once the server can no longer be reached, and
+	 * tells the subclass, see handleDisconnect. Does nothing if we have
+	 * closed the connection ourselves.
+	 */
+	private void connectionLost(IOException ioe) {
+		if (!shutDown())
+			return;
+		ioe.printStackTrace();
+		try {
+			handleDisconnect();
+		} catch (RuntimeException re) {
+			re.printStackTrace();
+		}
+	}
+
+	private void recordWait(long nanos) {
+		handledMessages.incrementAndGet();
+		waitNanos.addAndGet(nanos);
+		long max;
+		while (nanos > (max = maxWaitNanos.get())
+				&& !maxWaitNanos.compareAndSet(max, nanos))
+			;
+	}
+
 	/**
 	 * Starts a game session
 	 */
@@ -79,17 +345,30 @@ abstract public class AbstractClient implements Runnable, AutoCloseable {
 			throw new RuntimeException("Already started!");
 		active.set(true);
 		// Open the IO streams
-		netIn = new BufferedReader(new InputStreamReader(
-				clientSocket.getInputStream()));
-		netOut = new BufferedWriter(new OutputStreamWriter(
-				clientSocket.getOutputStream()));
+		socketIn = clientSocket.getInputStream();
+		netIn = new DataInputStream(new BufferedInputStream(socketIn));
+		netOut = new BufferedOutputStream(clientSocket.getOutputStream());
+		// Negotiate before anything else is sent
+		if (!requestedFeatures.isEmpty()) {
+			write("PROTOCOL " + String.join(" ", requestedFeatures));
+			netOut.flush();
+			negotiating = true;
+		}
+		// The server adds our player once it has our first command
+		if (resumeToken != null)
+			send("RESUME " + resumeToken);
+		else
+			send("LOOK");
 		// Start listening to the server
+		handledAt = System.nanoTime();
 		netReaderThread.start();
+		netWriterThread.start();
 	}
 
 	/**
-	 * Writes a message to the server ensuring that the buffered writer flushes
-	 * it
+	 * Queues a message for the server, the writer thread sends it. Never
+	 * blocks, so it is safe to call from the GUI. A LOOK is dropped if there
+	 * is one in the queue already.
 	 * 
 	 * @param msg
 	 *            - message to be sent
@@ -97,9 +376,85 @@ abstract public class AbstractClient implements Runnable, AutoCloseable {
 	public void send(String msg) throws IOException {
 		if (!isActive())
 			throw new IOException("Connection");
-		netOut.write(msg);
-		netOut.newLine();
-		netOut.flush();
+		if (msg.equals("LOOK") && !lookQueued.compareAndSet(false, true))
+			return;
+		outgoing.add(msg);
+		LockSupport.unpark(netWriterThread);
+	}
+
+	/**
+	 * The writer thread: sends the queued messages and flushes whenever the
+	 * queue runs dry. What has been queued before close is still sent.
+	 */
+	private void writeQueued() {
+		try {
+			while (true) {
+				final boolean stopping = !isActive();
+				if (!negotiating || stopping) {
+					String msg;
+					boolean written = false;
+					while ((msg = outgoing.poll()) != null) {
+						// Any LOOK queued from now on will get a fresh view
+						if (msg.equals("LOOK"))
+							lookQueued.set(false);
+						write(msg);
+						written = true;
+					}
+					if (written)
+						netOut.flush();
+				}
+				if (stopping)
+					return;
+				LockSupport.park(this);
+			}
+		} catch (IOException ioe) {
+			connectionLost(ioe);
+		} catch (RuntimeException re) {
+			re.printStackTrace();
+			close();
+		}
+	}
+
+	/**
+	 * Encodes a message the way which has been agreed upon and buffers it
+	 * 
+	 * @param msg
+	 */
+	synchronized private void write(String msg) throws IOException {
+		if (sequenced)
+			msg = "@" + (++sequence) + " " + msg;
+		if (binary) {
+			netOut.write(BinaryCodec.encode(msg));
+		} else {
+			netOut.write(msg.getBytes());
+			netOut.write(LINE_SEPARATOR);
+		}
+	}
+
+	/**
+	 * Handles the server's answer to our PROTOCOL request and lets the
+	 * writer send whatever has been held back meanwhile
+	 * 
+	 * @param msg
+	 *            - "PROTOCOL" followed by the accepted features, or the
+	 *            FAIL of a server which does not know the command
+	 */
+	private void handleProtocol(String msg) {
+		final Set<String> accepted = new HashSet<String>();
+		if (msg.startsWith("PROTOCOL"))
+			accepted.addAll(Arrays.asList(msg.substring(8).trim().split(" +")));
+		features = accepted;
+		binary = accepted.contains("BINARY");
+		sequenced = accepted.contains("SEQ");
+		if (accepted.contains("DEFLATE")) {
+			// Everything after the answer is compressed, including whatever
+			// has already been buffered
+			netIn = new DataInputStream(new BufferedInputStream(
+					new InflaterInputStream(netIn)));
+			netOut = new DeflaterOutputStream(netOut, true);
+		}
+		negotiating = false;
+		LockSupport.unpark(netWriterThread);
 	}
 
 	/**
@@ -111,9 +466,26 @@ abstract public class AbstractClient implements Runnable, AutoCloseable {
 		// Empty message, do nothing
 		if (msg.isEmpty())
 			return;
+		// Take the tag off a response to a pipelined command
+		responseSequence = -1;
+		if (sequenced && msg.startsWith("@")) {
+			final int space = msg.indexOf(' ');
+			responseSequence = Integer.parseInt(msg.substring(1,
+					(space < 0) ? msg.length() : space));
+			msg = (space < 0) ? "" : msg.substring(space + 1);
+		}
+		// The answer to our PROTOCOL request, the first of its kind
+		if (negotiating
+				&& (msg.startsWith("PROTOCOL") || msg.startsWith("FAIL"))) {
+			handleProtocol(msg);
+			return;
+		}
 		// Extract the entire look reply and handle it
 		if (msg.equals("LOOKREPLY")) {
 			handleLookReply(extractLookReply());
+		} else if (msg.startsWith("LOOKDELTA")) {
+			// Decide how to apply the changes to the last view
+			handleLookDelta(new ViewDelta(clipMessage(msg)));
 		} else if (msg.equals("WIN")) {
 			// Decide how to handle winning
 			handleWin();
@@ -150,6 +522,12 @@ abstract public class AbstractClient implements Runnable, AutoCloseable {
 		} else if (msg.startsWith("GOLD")) {
 			// Decide how to handle the initial gold message
 			handleGold(clipMessage(msg));
+		} else if (msg.startsWith("SESSION")) {
+			// Remember how to get our player back
+			sessionToken = clipMessage(msg);
+		} else if (msg.startsWith("RESUMED")) {
+			// Decide how to handle getting our player back
+			handleResumed(clipMessage(msg));
 		}
 	}
 
@@ -176,6 +554,14 @@ abstract public class AbstractClient implements Runnable, AutoCloseable {
 	protected void handleHello(String msg) throws IOException {
 	}
 
+	/**
+	 * @param msg
+	 *            the goal, our gold and our hit points, separated by spaces;
+	 *            our view follows
+	 */
+	protected void handleResumed(String msg) throws IOException {
+	}
+
 	protected void handleLose() throws IOException {
 	}
 
@@ -204,16 +590,56 @@ abstract public class AbstractClient implements Runnable, AutoCloseable {
 	}
 
 	/**
-	 * Reads from the server
+	 * Called once the connection has been lost, rather than closed by us. A
+	 * new client may take our player back with getSessionToken, see
+	 * setResumeToken.
+	 */
+	protected void handleDisconnect() {
+	}
+
+	/**
+	 * Reads from the server, blocking until a whole line (or frame) is there
 	 * 
-	 * @return - returns empty string if there is no pending input, otherwise
-	 *         returns whatever's in the buffer
+	 * @return - the next line from the server
 	 * @throws IOException
+	 *             - also when the server has closed the connection
 	 */
 	protected String receive() throws IOException {
-		if (netIn.ready())
-			return netIn.readLine();
-		return "";
+		if (!receivedLines.isEmpty())
+			return receivedLines.poll();
+		// Input which is already there has been waiting at least since the
+		// last handler returned, otherwise it arrives with the read. Data
+		// still inside the inflater is missed, so this is a lower bound.
+		final boolean waiting = socketIn.available() > 0
+				|| (!hasFeature("DEFLATE") && netIn.available() > 0);
+		final String line;
+		if (!binary) {
+			line = readLine();
+		} else {
+			BinaryCodec.decode(netIn, receivedLines);
+			line = receivedLines.poll();
+		}
+		arrivedAt = waiting ? handledAt : System.nanoTime();
+		return line;
+	}
+
+	/**
+	 * Reads a line of text from the server
+	 * 
+	 * @return the line without its terminator
+	 */
+	private String readLine() throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int b;
+		while ((b = netIn.read()) != '\n') {
+			if (b < 0)
+				throw new IOException("Connection closed by the server");
+			line.write(b);
+		}
+		String text = line.toString();
+		if (text.endsWith("\r"))
+			text = text.substring(0, text.length() - 1);
+		return text;
 	}
 
 	/**
@@ -221,23 +647,40 @@ abstract public class AbstractClient implements Runnable, AutoCloseable {
 	 */
 	@Override
 	public void close() {
+		shutDown();
+	}
+
+	/**
+	 * @return whether the connection has been closed by this call, false if
+	 *         it had been closed already
+	 */
+	private boolean shutDown() {
 		// Make sure we haven't closed twice
-		if (!active.get())
-			return;
-		active.set(false);
+		if (!active.compareAndSet(true, false))
+			return false;
 		try {
+			// Let the writer send what has been queued, unless it is the one
+			// closing
+			LockSupport.unpark(netWriterThread);
+			if (Thread.currentThread() != netWriterThread)
+				netWriterThread.join(TimeUnit.SECONDS.toMillis(1));
 			// Kill threads
 			netReaderThread.interrupt();
-			netIn.close();
+			// The output first, it may still have to finish its stream
 			netOut.close();
+			netIn.close();
 			clientSocket.close();
 		} catch (IOException ioe) {
 			System.err.println("Error closing: " + ioe.getMessage());
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
 		}
+		return true;
 	}
 
 	/**
-	 * Gets the rest of the look reply
+	 * Gets the rest of the look reply, waiting for rows which have not
+	 * arrived yet
 	 * 
 	 * @return array list of all the lines of the look reply
 	 */
@@ -279,6 +722,13 @@ abstract public class AbstractClient implements Runnable, AutoCloseable {
 		// Finished checking, define what to do next in subclasses
 	}
 
+	/**
+	 * Handles a LOOKDELTA, the changes since the last LOOKREPLY or LOOKDELTA.
+	 * Only sent by the server if asked for with setDeltaLook.
+	 */
+	protected void handleLookDelta(ViewDelta delta) {
+	}
+
 	/**
 	 * Remove the message header as to pass the contents of the message to its
 	 * handler
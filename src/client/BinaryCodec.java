@@ -0,0 +1,257 @@
+package client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * The client's side of the binary protocol, see server.BinaryCodec for the
+ * frame layout. Commands are packed into frames, and the frames received
+ * are turned back into the lines the text protocol would have sent.
+ */
+public class BinaryCodec {
+
+	//Server to client
+	public static final byte GOLD=0x01;
+	public static final byte HELLO=0x02;
+	public static final byte LOOKREPLY=0x03;
+	public static final byte SUCCESS=0x04;
+	public static final byte FAIL=0x05;
+	public static final byte CHANGE=0x06;
+	public static final byte STARTTURN=0x07;
+	public static final byte ENDTURN=0x08;
+	public static final byte WIN=0x09;
+	public static final byte LOSE=0x0A;
+	public static final byte MESSAGE=0x0B;
+	public static final byte HITMOD=0x0C;
+	public static final byte TREASUREMOD=0x0D;
+	public static final byte LOOKDELTA=0x0E;
+
+	//Client to server
+	public static final byte CMD_HELLO=0x21;
+	public static final byte CMD_LOOK=0x22;
+	public static final byte CMD_PICKUP=0x23;
+	public static final byte CMD_MOVE=0x24;
+	public static final byte CMD_ATTACK=0x25;
+	public static final byte CMD_ENDTURN=0x26;
+	public static final byte CMD_SHOUT=0x27;
+	public static final byte CMD_SETPLAYERPOS=0x28;
+
+	//The tag of a pipelined command or its response, in either direction;
+	//applies to the frame which follows it
+	public static final byte TAG=0x0F;
+
+	//Any other line of text, in either direction
+	public static final byte TEXT=0x7F;
+
+	//The tile characters, indexed by their 4 bit codes
+	public static final String TILES=".#EGAHLSPX?";
+
+	private static final int MAX_FRAME_LENGTH=0xFFFF;
+
+	private static final Charset UTF8=Charset.forName("UTF-8");
+
+	/**
+	 * Packs a command into a frame
+	 * @param command - a command as it would be sent in text
+	 * @return the frame, ready to be written
+	 */
+	public static byte[] encode(String command) {
+		if(command.startsWith("@"))
+			return encodeTagged(command);
+		final int space=command.indexOf(' ');
+		final String head=(space<0)?command:command.substring(0,space);
+		final String arg=(space<0)?"":command.substring(space+1).trim();
+
+		try {
+			switch(head){
+			case "HELLO":
+				return textFrame(CMD_HELLO,arg);
+			case "LOOK":
+				return frame(CMD_LOOK);
+			case "PICKUP":
+				return frame(CMD_PICKUP);
+			case "MOVE":
+				if(arg.length()!=1)break;
+				return frame(CMD_MOVE,(byte)arg.charAt(0));
+			case "ATTACK":
+				if(arg.length()!=1)break;
+				return frame(CMD_ATTACK,(byte)arg.charAt(0));
+			case "ENDTURN":
+				return frame(CMD_ENDTURN);
+			case "SHOUT":
+				return textFrame(CMD_SHOUT,arg);
+			case "SETPLAYERPOS":
+				String[] coordinates=arg.split(" +");
+				if(coordinates.length!=2)break;
+				ByteArrayOutputStream bytes=new ByteArrayOutputStream();
+				DataOutputStream out=new DataOutputStream(bytes);
+				out.writeShort(9);
+				out.writeByte(CMD_SETPLAYERPOS);
+				out.writeInt(Integer.parseInt(coordinates[0]));
+				out.writeInt(Integer.parseInt(coordinates[1]));
+				return bytes.toByteArray();
+			}
+		} catch (NumberFormatException | IOException e) {
+			// Let the server judge it
+		}
+		// Anything we can't pack is sent as it is
+		return textFrame(TEXT,command);
+	}
+
+	/**
+	 * Reads one frame and unpacks it
+	 * @param in - the stream from the server
+	 * @param lines - receives the lines the text protocol would have sent
+	 * @throws IOException
+	 */
+	public static void decode(DataInputStream in, Collection<String> lines) throws IOException {
+		final int length=in.readUnsignedShort();
+		if(length==0)
+			throw new IOException("Empty frame");
+		final byte[] frame=new byte[length];
+		in.readFully(frame);
+		final String text=new String(frame,1,length-1,UTF8);
+
+		switch(frame[0]){
+		case TAG:
+			decodeTagged(readInt(frame),in,lines);
+			break;
+		case GOLD:
+			lines.add("GOLD "+readInt(frame));
+			break;
+		case HELLO:
+			lines.add("HELLO "+text);
+			break;
+		case LOOKREPLY:
+			decodeLook(frame,lines);
+			break;
+		case LOOKDELTA:
+			decodeDelta(frame,lines);
+			break;
+		case SUCCESS:
+			lines.add("SUCCESS");
+			break;
+		case FAIL:
+			lines.add("FAIL "+text);
+			break;
+		case CHANGE:
+			lines.add("CHANGE");
+			break;
+		case STARTTURN:
+			lines.add("STARTTURN");
+			break;
+		case ENDTURN:
+			lines.add("ENDTURN");
+			break;
+		case WIN:
+			lines.add("WIN");
+			break;
+		case LOSE:
+			lines.add("LOSE");
+			break;
+		case MESSAGE:
+			lines.add("MESSAGE "+text);
+			break;
+		case HITMOD:
+			lines.add("HITMOD "+readInt(frame));
+			break;
+		case TREASUREMOD:
+			lines.add("TREASUREMOD "+readInt(frame));
+			break;
+		case TEXT:
+			for(String line:text.split("\r?\n",-1))
+				lines.add(line);
+			break;
+		default:
+			throw new IOException("Unknown opcode "+frame[0]);
+		}
+	}
+
+	/**
+	 * A TAG frame followed by the tagged command
+	 */
+	private static byte[] encodeTagged(String command) {
+		final int space=command.indexOf(' ');
+		final byte[] tagged=encode(command.substring(space+1));
+		final int tag=Integer.parseInt(command.substring(1,space));
+		final byte[] frame=frame(TAG,(byte)(tag>>24),(byte)(tag>>16),(byte)(tag>>8),(byte)tag);
+		final byte[] both=new byte[frame.length+tagged.length];
+		System.arraycopy(frame,0,both,0,frame.length);
+		System.arraycopy(tagged,0,both,frame.length,tagged.length);
+		return both;
+	}
+
+	/**
+	 * Reads the frame a TAG applies to, and tags its first line
+	 */
+	private static void decodeTagged(int tag, DataInputStream in, Collection<String> lines) throws IOException {
+		final ArrayList<String> tagged=new ArrayList<String>();
+		decode(in,tagged);
+		if(tagged.isEmpty())
+			return;
+		tagged.set(0,"@"+tag+" "+tagged.get(0));
+		lines.addAll(tagged);
+	}
+
+	/**
+	 * Unpacks a LOOKREPLY into its header, its rows and the empty line
+	 * which ends it in the text protocol
+	 */
+	private static void decodeLook(byte[] frame, Collection<String> lines) {
+		final int size=frame[1]&0xFF;
+		lines.add("LOOKREPLY");
+		StringBuilder row=new StringBuilder(size);
+		for(int cell=0;cell<size*size;cell++){
+			int packed=frame[2+cell/2]&0xFF;
+			int code=(cell%2==0)?packed>>4:packed&0x0F;
+			row.append(code<TILES.length()?TILES.charAt(code):'?');
+			if(row.length()==size){
+				lines.add(row.toString());
+				row.setLength(0);
+			}
+		}
+		lines.add("");
+	}
+
+	/**
+	 * Unpacks a LOOKDELTA into its textual form
+	 */
+	private static void decodeDelta(byte[] frame, Collection<String> lines) {
+		StringBuilder delta=new StringBuilder("LOOKDELTA ");
+		delta.append(frame[1]).append(' ').append(frame[2]);
+		for(int i=3;i+2<frame.length;i+=3){
+			int code=frame[i+2]&0xFF;
+			delta.append(' ').append(frame[i]&0xFF).append(' ').append(frame[i+1]&0xFF)
+				.append(' ').append(code<TILES.length()?TILES.charAt(code):'?');
+		}
+		lines.add(delta.toString());
+	}
+
+	private static int readInt(byte[] frame) {
+		return ((frame[1]&0xFF)<<24)|((frame[2]&0xFF)<<16)|((frame[3]&0xFF)<<8)|(frame[4]&0xFF);
+	}
+
+	private static byte[] frame(byte opcode, byte... payload) {
+		byte[] frame=new byte[3+payload.length];
+		frame[0]=(byte)((1+payload.length)>>8);
+		frame[1]=(byte)(1+payload.length);
+		frame[2]=opcode;
+		System.arraycopy(payload,0,frame,3,payload.length);
+		return frame;
+	}
+
+	private static byte[] textFrame(byte opcode, String text) {
+		byte[] bytes=text.getBytes(UTF8);
+		if(bytes.length>MAX_FRAME_LENGTH-1){
+			byte[] cut=new byte[MAX_FRAME_LENGTH-1];
+			System.arraycopy(bytes,0,cut,0,cut.length);
+			bytes=cut;
+		}
+		return frame(opcode,bytes);
+	}
+}
@@ -0,0 +1,73 @@
+package client;
+
+/**
+ * The changes between two views of the map, as sent in a LOOKDELTA: how far
+ * the view has moved, and the tiles which differ from the moved old view.
+ */
+public class ViewDelta {
+
+	private final int colShift, rowShift;
+	private final int[] cols, rows;
+	private final char[] tiles;
+
+	/**
+	 * Parses a LOOKDELTA
+	 * 
+	 * @param msg
+	 *            - the message without its header: the shift followed by a
+	 *            "col row tile" triple for every changed tile
+	 */
+	public ViewDelta(String msg) {
+		final String[] parts = msg.trim().split(" +");
+		if (parts.length < 2 || (parts.length - 2) % 3 != 0)
+			throw new RuntimeException("FAIL: Invalid LOOKDELTA");
+		colShift = Integer.parseInt(parts[0]);
+		rowShift = Integer.parseInt(parts[1]);
+		final int changes = (parts.length - 2) / 3;
+		cols = new int[changes];
+		rows = new int[changes];
+		tiles = new char[changes];
+		for (int i = 0; i < changes; i++) {
+			cols[i] = Integer.parseInt(parts[2 + 3 * i]);
+			rows[i] = Integer.parseInt(parts[3 + 3 * i]);
+			tiles[i] = parts[4 + 3 * i].charAt(0);
+		}
+	}
+
+	/**
+	 * @return the number of changed tiles
+	 */
+	public int getChanges() {
+		return tiles.length;
+	}
+
+	/**
+	 * Turns the previous view into the new one in place
+	 * 
+	 * @param view
+	 *            - the previous view, a square
+	 */
+	public void applyTo(char[][] view) {
+		final int size = view.length;
+		if (Math.abs(colShift) >= size || Math.abs(rowShift) >= size)
+			throw new RuntimeException("FAIL: Invalid LOOKDELTA");
+
+		// Move whole rows by swapping them, the rows which fall off the view
+		// are reused for the ones coming in, whose tiles are all listed
+		if (rowShift != 0) {
+			final char[][] old = view.clone();
+			for (int row = 0; row < size; row++)
+				view[row] = old[Math.floorMod(row + rowShift, size)];
+		}
+		// Move the tiles within the rows
+		if (colShift != 0) {
+			final int length = size - Math.abs(colShift);
+			for (char[] row : view)
+				System.arraycopy(row, Math.max(colShift, 0), row,
+						Math.max(-colShift, 0), length);
+		}
+
+		for (int i = 0; i < tiles.length; i++)
+			view[rows[i]][cols[i]] = tiles[i];
+	}
+}
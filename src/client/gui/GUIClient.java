@@ -4,7 +4,7 @@ import java.io.IOException;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 
-import javax.swing.JOptionPane;
+import client.ViewDelta;
 
 /**
  * A client class which is used in conjunction with a GUI 
@@ -16,6 +16,10 @@ public class GUIClient extends client.AbstractClient {
 	//The GUI which we'll be working with
 	private GamePanel owner;
 
+	//Set once we have won or lost, there is no player left to take back
+	//until the next match starts
+	private volatile boolean over = false;
+
 	/**
 	 * Extends the parent class' constructor
 	 * @param host
@@ -31,14 +35,38 @@ public class GUIClient extends client.AbstractClient {
 	}
 
 	/**
-	 * 
+	 * Tells the player how much gold is needed, without holding up the
+	 * messages which follow. It also starts every new match, in which we
+	 * have a player again.
 	 */
 	
 	@Override
 	protected void handleGold(String msg) throws IOException{
 		super.handleGold(msg);
-		JOptionPane.showMessageDialog(owner, "You'll need "+msg+" gold to escape!", "You're DOOOMED!s",
-				JOptionPane.INFORMATION_MESSAGE);
+		over = false;
+		owner.showDialog("You'll need "+msg+" gold to escape!", "You're DOOOMED!s");
+	}
+
+	/**
+	 * Tells the player that the game goes on where it was left
+	 */
+	@Override
+	protected void handleResumed(String msg) {
+		String[] state = msg.split(" ");
+		owner.showStatus("Reconnected! You have " + state[1] + " of "
+				+ state[0] + " gold and " + state[2] + " HP");
+	}
+
+	/**
+	 * Asks the panel to take the player back over a new connection, unless
+	 * the game is over for it anyway
+	 */
+	@Override
+	protected void handleDisconnect() {
+		if (over)
+			owner.showStatus("Disconnected.");
+		else
+			owner.connectionLost(getSessionToken());
 	}
 	
 	/**
@@ -50,6 +78,14 @@ public class GUIClient extends client.AbstractClient {
 		owner.update(lines);
 	}
 	
+	/**
+	 * Patches the view shown instead of replacing it
+	 */
+	@Override
+	protected void handleLookDelta(ViewDelta delta) {
+		owner.patch(delta);
+	}
+	
 	/**
 	 * Handles success messages by sending a look message in order to update the screen
 	 */
@@ -59,12 +95,11 @@ public class GUIClient extends client.AbstractClient {
 	}
 	
 	/**
-	 * Handles failures by invoking a pop-up ( on the GUI)
+	 * Handles failures by showing them in the status bar
 	 */
 	@Override
 	protected void handleFail(String msg) {
-		JOptionPane.showMessageDialog(owner, msg, "Faliure",
-				JOptionPane.WARNING_MESSAGE);
+		owner.showStatus("Failure: " + msg);
 	}
 
 	/**
@@ -72,8 +107,8 @@ public class GUIClient extends client.AbstractClient {
 	 */
 	@Override
 	protected void handleWin() {
-		JOptionPane.showMessageDialog(owner, "You Win!", "Game Over",
-				JOptionPane.INFORMATION_MESSAGE);
+		over = true;
+		owner.showDialog("You Win!", "Game Over");
 	}
 
 	/**
@@ -81,12 +116,12 @@ public class GUIClient extends client.AbstractClient {
 	 */
 	@Override
 	protected void handleLose() {
-		JOptionPane.showMessageDialog(owner, "You Lose!", "Game Over",
-				JOptionPane.INFORMATION_MESSAGE);
+		over = true;
+		owner.showDialog("You Lose!", "Game Over");
 	}
 	
 	/**
-	 * Handles HP changes by invoking a pop-up
+	 * Handles HP changes by showing them in the status bar
 	 */
 	@Override
 	protected void handleHPChange(String msg) {
@@ -96,12 +131,11 @@ public class GUIClient extends client.AbstractClient {
 			msg = "You take " + (-i) + " damage!";
 		else
 			msg = "You are healed for " + i;
-		JOptionPane.showMessageDialog(owner, msg, "Update",
-				JOptionPane.INFORMATION_MESSAGE);
+		owner.showStatus(msg);
 	}
 	
 	/**
-	 * Handles gaining/losing gold by invoking a pop-up
+	 * Handles gaining/losing gold by showing it in the status bar
 	 */
 	@Override
 	protected void handleTreasureChange(String msg) {
@@ -111,26 +145,23 @@ public class GUIClient extends client.AbstractClient {
 			msg = "You lose " + (-i) + " gold!";
 		else
 			msg = "You get " + i + " gold!";
-		JOptionPane.showMessageDialog(owner, msg, "Update",
-				JOptionPane.INFORMATION_MESSAGE);
+		owner.showStatus(msg);
 	}
 	
 	/**
-	 * Handles the start of the player turn via pop-up notification
+	 * Handles the start of the player turn via the status bar
 	 */
 	@Override
 	protected void handleStartTurn(){
-		JOptionPane.showMessageDialog(owner, "Your turn!", "Update",
-				JOptionPane.INFORMATION_MESSAGE);
+		owner.showStatus("Your turn!");
 	}
 	
 	/**
-	 * 
+	 * Handles the end of the player turn via the status bar
 	 */
 	@Override
 	protected void handleEndTurn(){
-		JOptionPane.showMessageDialog(owner, "End of your turn.", "Update",
-				JOptionPane.INFORMATION_MESSAGE);
+		owner.showStatus("End of your turn.");
 	}
 
 }
@@ -3,14 +3,12 @@ package client.gui;
 import java.awt.Color;
 import java.awt.Graphics;
 import java.awt.Image;
-import java.awt.image.BufferedImage;
-import java.io.File;
-import java.io.IOException;
 import java.util.ArrayList;
 
-import javax.imageio.ImageIO;
 import javax.swing.JPanel;
 
+import client.ViewDelta;
+
 /**
  * The class that is responsible for drawing the game objects. WARNING: This
  * class is not safe to use, and that is the reason it is package private
@@ -20,29 +18,16 @@ class GameCanvas extends JPanel {
 
 	private static final long serialVersionUID = 8045634553799480147L;
 
-	private char[][] view = null;
-	private int rows = 0, cols = 0;
+	// The latest view, set by the client's thread. A view is never changed
+	// once it has been set, so the EDT can paint it while the next one is
+	// being made.
+	private volatile char[][] view = null;
 
-	private BufferedImage wall, gold, player, sword, armor, potion, latern,
-			exit,floor;
+	// The tiles' images, scaled to the tile size
+	private SpriteAtlas sprites = null;
 
 	public GameCanvas() {
 		super();
-		// Attempt to load the files containing the images
-		try {
-			wall = ImageIO.read(new File("img/wall.png"));
-			gold = ImageIO.read(new File("img/gold.png"));
-			player = ImageIO.read(new File("img/player.png"));
-			sword = ImageIO.read(new File("img/sword.png"));
-			armor = ImageIO.read(new File("img/armor.png"));
-			potion = ImageIO.read(new File("img/potion.png"));
-			latern = ImageIO.read(new File("img/latern.png"));
-			exit = ImageIO.read(new File("img/exit.png"));
-			floor = ImageIO.read(new File("img/floor.png"));
-		} catch (IOException e) {
-			// Do nothing, if they are missing someone has messed with the game
-			// files
-		}
 	}
 
 	/**
@@ -54,12 +39,31 @@ class GameCanvas extends JPanel {
 	 *            - the lines handled from the LOOKREPLY
 	 */
 	public void update(ArrayList<String> lines) {
-		rows = lines.size();
-		cols = rows;
-		view = new char[rows][];
+		final char[][] newView = new char[lines.size()][];
 		int index = 0;
 		for (String s : lines)
-			view[index++] = s.toCharArray();
+			newView[index++] = s.toCharArray();
+		view = newView;
+		repaint();
+	}
+
+	/**
+	 * Applies a LOOKDELTA to a copy of the current view, which then becomes
+	 * the current view. The view being painted is left as it is.
+	 * 
+	 * @param delta
+	 *            - the changes since the last view
+	 */
+	public void patch(ViewDelta delta) {
+		final char[][] current = view;
+		// The server always starts with a full LOOKREPLY
+		if (current == null)
+			return;
+		final char[][] newView = new char[current.length][];
+		for (int row = 0; row < current.length; row++)
+			newView[row] = current[row].clone();
+		delta.applyTo(newView);
+		view = newView;
 		repaint();
 	}
 
@@ -119,7 +123,7 @@ class GameCanvas extends JPanel {
 	 * @param col
 	 */
 	protected void paintFloor(Graphics g, int row, int col) {
-		g.drawImage(rescale(floor), col * getTileWidth(), row * getTileHeight(),
+		g.drawImage(sprite('.'), col * getTileWidth(), row * getTileHeight(),
 				null);
 	}
 
@@ -131,7 +135,7 @@ class GameCanvas extends JPanel {
 	 * @param col
 	 */
 	protected void paintWall(Graphics g, int row, int col) {
-		g.drawImage(rescale(wall), col * getTileWidth(), row * getTileHeight(),
+		g.drawImage(sprite('#'), col * getTileWidth(), row * getTileHeight(),
 				null);
 	}
 
@@ -143,8 +147,7 @@ class GameCanvas extends JPanel {
 	 * @param col
 	 */
 	protected void paintGold(Graphics g, int row, int col) {
-		paintFloor(g, row, col);
-		g.drawImage(rescale(gold), col * getTileWidth(), row * getTileHeight(),
+		g.drawImage(sprite('G'), col * getTileWidth(), row * getTileHeight(),
 				null);
 	}
 
@@ -156,8 +159,7 @@ class GameCanvas extends JPanel {
 	 * @param col
 	 */
 	protected void paintPlayer(Graphics g, int row, int col) {
-		paintFloor(g, row, col);
-		g.drawImage(rescale(player), col * getTileWidth(),
+		g.drawImage(sprite('P'), col * getTileWidth(),
 				row * getTileHeight(), null);
 	}
 
@@ -169,9 +171,7 @@ class GameCanvas extends JPanel {
 	 * @param col
 	 */
 	protected void paintSword(Graphics g, int row, int col) {
-
-		paintFloor(g, row, col);
-		g.drawImage(rescale(sword), col * getTileWidth(), row * getTileHeight(),
+		g.drawImage(sprite('S'), col * getTileWidth(), row * getTileHeight(),
 				null);
 	}
 
@@ -183,8 +183,7 @@ class GameCanvas extends JPanel {
 	 * @param col
 	 */
 	protected void paintArmor(Graphics g, int row, int col) {
-		paintFloor(g, row, col);
-		g.drawImage(rescale(armor), col * getTileWidth(), row * getTileHeight(),
+		g.drawImage(sprite('A'), col * getTileWidth(), row * getTileHeight(),
 				null);
 	}
 
@@ -196,8 +195,7 @@ class GameCanvas extends JPanel {
 	 * @param col
 	 */
 	protected void paintHealthPotion(Graphics g, int row, int col) {
-		paintFloor(g, row, col);
-		g.drawImage(rescale(potion), col * getTileWidth(),
+		g.drawImage(sprite('H'), col * getTileWidth(),
 				row * getTileHeight(), null);
 	}
 
@@ -209,7 +207,7 @@ class GameCanvas extends JPanel {
 	 * @param col
 	 */
 	protected void paintExit(Graphics g, int row, int col) {
-		g.drawImage(rescale(exit), col * getTileWidth(), row * getTileHeight(),
+		g.drawImage(sprite('E'), col * getTileWidth(), row * getTileHeight(),
 				null);
 	}
 
@@ -221,21 +219,22 @@ class GameCanvas extends JPanel {
 	 * @param col
 	 */
 	protected void paintLatern(Graphics g, int row, int col) {
-		paintFloor(g, row, col);
-		g.drawImage(rescale(latern), col * getTileWidth(), row * getTileHeight(), null);
+		g.drawImage(sprite('L'), col * getTileWidth(), row * getTileHeight(), null);
 	}
 
 	/**
 	 * Determines what needs to be drawn at a given tile
 	 * 
 	 * @param g
+	 * @param shown
+	 *            - the view being painted
 	 * @param row
 	 * @param col
 	 */
-	protected void paintTile(Graphics g, int row, int col) {
+	protected void paintTile(Graphics g, char[][] shown, int row, int col) {
 		try {
 
-			switch (view[row][col]) {
+			switch (shown[row][col]) {
 			case '.':
 				paintFloor(g, row, col);
 				break;
@@ -276,20 +275,28 @@ class GameCanvas extends JPanel {
 		super.paintComponent(g);
 		g.setColor(new Color(0));
 		g.fillRect(0, 0, getWidth(), getHeight());
-		for (int row = 0; row < rows; row++)
-			for (int col = 0; col < cols; col++)
-				paintTile(g, row, col);
+		// The same view throughout, however many arrive meanwhile
+		final char[][] shown = view;
+		if (shown == null)
+			return;
+		for (int row = 0; row < shown.length; row++)
+			for (int col = 0; col < shown[row].length; col++)
+				paintTile(g, shown, row, col);
 	}
 
 	/**
-	 * Rescales the image according to tile size
+	 * Returns the image of a tile, scaled to the tile size. The images are
+	 * only scaled again once the tile size has changed, i.e. when the canvas
+	 * is resized or the view's size changes.
 	 * 
-	 * @param i - image to be resized
-	 * @return - resized image
+	 * @param tile - the character of the tile on the map
+	 * @return - the scaled image, null if the tile has none
 	 */
-	private Image rescale(Image i) {
-		Image rescaled = i.getScaledInstance(getTileWidth(), getTileHeight(),
-				Image.SCALE_DEFAULT);
-		return rescaled;
+	private Image sprite(char tile) {
+		int width = getTileWidth(), height = getTileHeight();
+		if (sprites == null || sprites.getWidth() != width
+				|| sprites.getHeight() != height)
+			sprites = SpriteAtlas.forSize(width, height);
+		return sprites.get(tile);
 	}
 }
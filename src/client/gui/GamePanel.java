@@ -1,11 +1,14 @@
 package client.gui;
 
+import java.awt.BorderLayout;
 import java.awt.Dimension;
 import java.awt.FlowLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.IOException;
+import java.net.InetAddress;
 import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
 
 import javax.swing.BorderFactory;
 import javax.swing.BoxLayout;
@@ -14,15 +17,41 @@ import javax.swing.JButton;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JRadioButton;
+import javax.swing.SwingUtilities;
+
+import client.ViewDelta;
 
 public class GamePanel extends JPanel implements ActionListener,AutoCloseable {
 
 	private static final long serialVersionUID = -3338537058744374697L;
 	
 	/**
-	 * The client which will serve as this panels I/O
+	 * How long we keep trying to take our player back once the connection
+	 * is lost, the server keeps it for 30 seconds unless told otherwise
+	 */
+	private static final long RESUME_PERIOD = 30000;
+
+	/**
+	 * How long to wait between two attempts to reconnect, in milliseconds
+	 */
+	private static final long RECONNECT_INTERVAL = 1000;
+
+	/**
+	 * The client which will serve as this panels I/O, replaced by a new one
+	 * when the connection is lost
+	 */
+	private volatile GUIClient client = null;
+
+	/**
+	 * The server the client connects to
+	 */
+	private final String host;
+	private final int port;
+
+	/**
+	 * Set once the panel is closed, we stop reconnecting then
 	 */
-	private GUIClient client = null;
+	private volatile boolean closing = false;
 
 	/**
 	 * The canvas which will draw the in-game objects
@@ -48,6 +77,16 @@ public class GamePanel extends JPanel implements ActionListener,AutoCloseable {
 						east = new JRadioButton("East"), 
 						south = new JRadioButton("South"),
 						west = new JRadioButton("West");
+	/**
+	 * Contains the canvas and the action and direction panels
+	 */
+	JPanel gamePane = new JPanel();
+
+	/**
+	 * Shows the notifications of the game below the rest
+	 */
+	private StatusBar status = new StatusBar();
+
 	/**
 	 * Contains action radio buttons and the other buttons as well
 	 */
@@ -104,7 +143,7 @@ public class GamePanel extends JPanel implements ActionListener,AutoCloseable {
 
 		//Add the subpanel 
 		
-		this.add(actionsPanel);
+		gamePane.add(actionsPanel);
 	}
 	
 	/**
@@ -146,7 +185,7 @@ public class GamePanel extends JPanel implements ActionListener,AutoCloseable {
 
 		//Add the subpanel
 		
-		this.add(directionsPanel);
+		gamePane.add(directionsPanel);
 
 	}
 	
@@ -161,20 +200,25 @@ public class GamePanel extends JPanel implements ActionListener,AutoCloseable {
 	 */
 	public GamePanel(int size, String host, int port) throws IOException,
 			RuntimeException {
+		this.host = host;
+		this.port = port;
 		try {
 			
 			//Attempt to open a connection
-			client = new GUIClient(host, port, this);
-			client.start();
+			client = connect(null);
 
-			this.setLayout(new FlowLayout(FlowLayout.LEFT, 0, 0));
+			this.setLayout(new BorderLayout());
+			gamePane.setLayout(new FlowLayout(FlowLayout.LEFT, 0, 0));
 
 			canvas.setPreferredSize(new Dimension(size, size));
-			this.add(canvas);
+			gamePane.add(canvas);
 			
 			actionPanelSetup(2 * size, size);
 			directionsPanelSetup(2 * size, size);
 
+			this.add(gamePane, BorderLayout.CENTER);
+			this.add(status, BorderLayout.SOUTH);
+
 		} catch (RuntimeException | IOException e) {
 			errorHandler(e);
 			// Let the caller decide how to further handle this
@@ -183,6 +227,95 @@ public class GamePanel extends JPanel implements ActionListener,AutoCloseable {
 
 	}
 	
+	/**
+	 * Opens a connection to the server
+	 * @param token - the session of a player to take back, null for a new player
+	 * @return the client, started
+	 * @throws IOException
+	 */
+	private GUIClient connect(String token) throws IOException {
+		GUIClient newClient = new GUIClient(host, port, this);
+		newClient.setBinary(true);
+		newClient.setDeltaLook(true);
+		newClient.setPushViews(true);
+		// Compression only pays off beyond the local network
+		final InetAddress address = InetAddress.getByName(host);
+		newClient.setCompression(!address.isLoopbackAddress()
+				&& !address.isSiteLocalAddress());
+		newClient.setResumeToken(token);
+		newClient.start();
+		return newClient;
+	}
+
+	/**
+	 * Called by the client once its connection has been lost. Keeps trying
+	 * to take the player back over a new connection, in the background,
+	 * for as long as the server keeps it.
+	 * @param token - the session of the player, null if the server does not
+	 *                keep players for resuming
+	 */
+	void connectionLost(final String token) {
+		if (closing)
+			return;
+		setActionsEnabled(false);
+		if (token == null) {
+			showStatus("Connection lost.");
+			return;
+		}
+		showStatus("Connection lost, reconnecting...");
+		Thread reconnect = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				reconnect(token);
+			}
+		}, "Reconnect");
+		reconnect.setDaemon(true);
+		reconnect.start();
+	}
+
+	/**
+	 * Tries to connect again until the player has been taken back or the
+	 * server would have let it go
+	 * @param token - the session of the player
+	 */
+	private void reconnect(String token) {
+		final long giveUp = System.nanoTime()
+				+ TimeUnit.MILLISECONDS.toNanos(RESUME_PERIOD);
+		while (!closing && System.nanoTime() < giveUp) {
+			try {
+				client = connect(token);
+				// The panel may have been closed meanwhile
+				if (closing)
+					client.close();
+				else
+					setActionsEnabled(true);
+				return;
+			} catch (IOException e) {
+				// The server cannot be reached yet
+			}
+			try {
+				Thread.sleep(RECONNECT_INTERVAL);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+		if (!closing)
+			showStatus("Connection lost, your player could not be taken back.");
+	}
+
+	/**
+	 * Enables or disables doAction, safe to call from any thread
+	 * @param enabled
+	 */
+	private void setActionsEnabled(final boolean enabled) {
+		SwingUtilities.invokeLater(new Runnable() {
+			@Override
+			public void run() {
+				doAction.setEnabled(enabled && !closing);
+			}
+		});
+	}
+
 	/**
 	 * Updates the GameCanvas
 	 * @param lines
@@ -191,6 +324,60 @@ public class GamePanel extends JPanel implements ActionListener,AutoCloseable {
 		canvas.update(lines);
 	}
 	
+	/**
+	 * Applies the changes since the last view to the GameCanvas
+	 * @param delta
+	 */
+	public void patch(ViewDelta delta) {
+		canvas.patch(delta);
+	}
+	
+	/**
+	 * Shows a notification in the status bar, safe to call from any thread
+	 * and never blocks
+	 * @param notification
+	 */
+	public void showStatus(String notification) {
+		status.post(notification);
+	}
+
+	/**
+	 * Shows a dialog without making the caller wait for it to be closed
+	 * @param message
+	 * @param title
+	 */
+	public void showDialog(final String message, final String title) {
+		SwingUtilities.invokeLater(new Runnable() {
+			@Override
+			public void run() {
+				JOptionPane.showMessageDialog(GamePanel.this, message, title,
+						JOptionPane.INFORMATION_MESSAGE);
+			}
+		});
+	}
+
+	/**
+	 * @return the number of notifications waiting to be shown
+	 */
+	public int getStatusQueueDepth() {
+		return status.getQueueDepth();
+	}
+
+	/**
+	 * @return the most notifications which have been waiting to be shown at
+	 *         once
+	 */
+	public long getMaxStatusQueueDepth() {
+		return status.getMaxQueueDepth();
+	}
+
+	/**
+	 * @return the number of notifications dropped before they could be shown
+	 */
+	public long getDroppedStatusNotifications() {
+		return status.getDroppedNotifications();
+	}
+
 	/**
 	 * Determines what command should be sent to the server, added to doAction
 	 */
@@ -229,6 +416,7 @@ public class GamePanel extends JPanel implements ActionListener,AutoCloseable {
 	 * Used to close the panel in case of exceptions or if the user decides to
 	 */
 	@Override public void close(){
+		closing = true;
 		try{
 			if(client.isActive())
 				client.send("");
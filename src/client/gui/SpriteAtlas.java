@@ -0,0 +1,143 @@
+package client.gui;
+
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.GraphicsEnvironment;
+import java.awt.Image;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+/**
+ * The tiles' images, scaled to a tile size once rather than every time a
+ * tile is painted. The client's copy of server.SpriteAtlas: the images are
+ * read from img/ once, items are drawn over a floor when the atlas is built,
+ * and an atlas is only built again once the tile size changes, i.e. when the
+ * window is resized.
+ */
+final class SpriteAtlas {
+
+	// The images as they are read, by view character
+	private static final BufferedImage[] originals = new BufferedImage[128];
+
+	// The atlas built last, handed out again while the size stays the same
+	private static volatile SpriteAtlas last = null;
+
+	static {
+		load('#', "wall");
+		load('.', "floor");
+		load('G', "gold");
+		load('P', "player");
+		load('S', "sword");
+		load('A', "armor");
+		load('H', "potion");
+		load('L', "latern");
+		load('E', "exit");
+	}
+
+	private final int width, height;
+
+	// The scaled images, by view character, null for characters without one
+	private final BufferedImage[] sprites = new BufferedImage[128];
+
+	/**
+	 * Returns an atlas for a tile size, building it only if the last one
+	 * asked for was for another size
+	 *
+	 * @param width
+	 *            - of a tile, in pixels
+	 * @param height
+	 *            - of a tile, in pixels
+	 * @return the atlas
+	 */
+	static SpriteAtlas forSize(int width, int height) {
+		SpriteAtlas atlas = last;
+		if (atlas == null || atlas.width != width || atlas.height != height) {
+			atlas = new SpriteAtlas(width, height);
+			last = atlas;
+		}
+		return atlas;
+	}
+
+	private SpriteAtlas(int newWidth, int newHeight) {
+		width = newWidth;
+		height = newHeight;
+		// Before the first view the canvas has no tile size yet
+		if (width <= 0 || height <= 0)
+			return;
+		for (char tile = 0; tile < originals.length; tile++) {
+			if (originals[tile] == null)
+				continue;
+			BufferedImage sprite = createImage();
+			Graphics2D g = sprite.createGraphics();
+			// Items lie on the floor, walls and exits cover the whole tile
+			if (tile != '#' && tile != '.' && tile != 'E'
+					&& originals['.'] != null)
+				g.drawImage(scale(originals['.']), 0, 0, null);
+			g.drawImage(scale(originals[tile]), 0, 0, null);
+			g.dispose();
+			sprites[tile] = sprite;
+		}
+	}
+
+	/**
+	 * @return the width of a tile, in pixels
+	 */
+	int getWidth() {
+		return width;
+	}
+
+	/**
+	 * @return the height of a tile, in pixels
+	 */
+	int getHeight() {
+		return height;
+	}
+
+	/**
+	 * @param tile
+	 *            - the character of the tile in the view
+	 * @return the tile's image, scaled, null if it has none
+	 */
+	BufferedImage get(char tile) {
+		return tile < sprites.length ? sprites[tile] : null;
+	}
+
+	/**
+	 * Creates an image for a sprite, in the screen's format so that drawing
+	 * it needs no conversion
+	 */
+	private BufferedImage createImage() {
+		if (GraphicsEnvironment.isHeadless())
+			return new BufferedImage(width, height,
+					BufferedImage.TYPE_INT_ARGB);
+		GraphicsConfiguration screen = GraphicsEnvironment
+				.getLocalGraphicsEnvironment().getDefaultScreenDevice()
+				.getDefaultConfiguration();
+		return screen.createCompatibleImage(width, height,
+				Transparency.TRANSLUCENT);
+	}
+
+	/**
+	 * Scales an image to the tile size, the way the tiles have always been
+	 * scaled
+	 *
+	 * @param image
+	 * @return the scaled image
+	 */
+	private Image scale(BufferedImage image) {
+		return image.getScaledInstance(width, height, Image.SCALE_DEFAULT);
+	}
+
+	private static void load(char tile, String name) {
+		try {
+			originals[tile] = ImageIO.read(new File("img/" + name + ".png"));
+		} catch (IOException e) {
+			// Missing, someone has messed with the game files; the tile is
+			// left black
+		}
+	}
+}
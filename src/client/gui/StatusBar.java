@@ -0,0 +1,140 @@
+package client.gui;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.ArrayDeque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.swing.BorderFactory;
+import javax.swing.JLabel;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+/**
+ * Shows the game's notifications (turns, damage, gold, failures) as short
+ * lived lines of text instead of dialogs. Any thread may post to it without
+ * ever waiting - the notifications are queued and shown on the EDT. The
+ * queue is bounded: when the EDT falls behind the oldest notifications are
+ * dropped.
+ */
+class StatusBar extends JLabel {
+
+	private static final long serialVersionUID = -6129733040617520917L;
+
+	/**
+	 * How many notifications may wait for the EDT, and how many are shown
+	 */
+	private static final int QUEUE_CAPACITY = 32;
+	private static final int SHOWN = 3;
+
+	/**
+	 * How long a notification stays on screen, in milliseconds
+	 */
+	private static final int SHOW_MILLIS = 4000;
+
+	/**
+	 * Notifications waiting for the EDT
+	 */
+	private final ArrayBlockingQueue<String> pending = new ArrayBlockingQueue<String>(
+			QUEUE_CAPACITY);
+
+	/**
+	 * Set while the EDT has been asked to show the pending notifications
+	 */
+	private final AtomicBoolean showScheduled = new AtomicBoolean(false);
+
+	/**
+	 * The deepest the queue has been, and the notifications dropped
+	 */
+	private final AtomicLong maxDepth = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+
+	/**
+	 * The notifications on screen, oldest first (EDT only)
+	 */
+	private final ArrayDeque<String> shown = new ArrayDeque<String>();
+
+	/**
+	 * Clears the notifications once they have been shown long enough
+	 */
+	private final Timer expiry = new Timer(SHOW_MILLIS, new ActionListener() {
+		@Override
+		public void actionPerformed(ActionEvent e) {
+			shown.clear();
+			setText(" ");
+		}
+	});
+
+	/**
+	 * Shows whatever has been posted meanwhile, runs on the EDT
+	 */
+	private final Runnable showPending = new Runnable() {
+		@Override
+		public void run() {
+			showScheduled.set(false);
+			String notification;
+			while ((notification = pending.poll()) != null) {
+				shown.add(notification);
+				if (shown.size() > SHOWN)
+					shown.poll();
+			}
+			setText("<html>" + String.join("<br>", shown) + "</html>");
+			expiry.restart();
+		}
+	};
+
+	public StatusBar() {
+		super(" ");
+		setBorder(BorderFactory.createTitledBorder("Status"));
+		expiry.setRepeats(false);
+	}
+
+	/**
+	 * Queues a notification to be shown, never blocks
+	 *
+	 * @param notification
+	 */
+	public void post(String notification) {
+		// Make room by forgetting the oldest one
+		while (!pending.offer(escape(notification))) {
+			if (pending.poll() != null)
+				dropped.incrementAndGet();
+		}
+		final int depth = pending.size();
+		long max;
+		while (depth > (max = maxDepth.get())
+				&& !maxDepth.compareAndSet(max, depth))
+			;
+		if (showScheduled.compareAndSet(false, true))
+			SwingUtilities.invokeLater(showPending);
+	}
+
+	/**
+	 * @return the number of notifications waiting for the EDT
+	 */
+	public int getQueueDepth() {
+		return pending.size();
+	}
+
+	/**
+	 * @return the most notifications which have been waiting for the EDT at
+	 *         once, never more than the capacity of the queue
+	 */
+	public long getMaxQueueDepth() {
+		return maxDepth.get();
+	}
+
+	/**
+	 * @return the number of notifications dropped because the EDT fell behind
+	 */
+	public long getDroppedNotifications() {
+		return dropped.get();
+	}
+
+	private static String escape(String text) {
+		return text.replace("&", "&amp;").replace("<", "&lt;")
+				.replace(">", "&gt;");
+	}
+}
@@ -0,0 +1,87 @@
+package server;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+
+/**
+ * Decides whether a newly accepted connection may be served, by limiting
+ * the total number of connections and the number of connections per
+ * source address. Every admitted connection must be released once closed.
+ */
+public class AdmissionControl {
+
+	//Limits, can be changed at any time but only affect new connections
+	private volatile int maxConnections=1024;
+	private volatile int maxConnectionsPerAddress=32;
+
+	//Currently admitted connections, in total and per address
+	private int connections=0;
+	private final HashMap<InetAddress,Integer> perAddress=new HashMap<InetAddress,Integer>();
+
+	//How many connections have been refused so far
+	private int refused=0;
+
+	/**
+	 * Tries to admit a connection from the given address
+	 * @param address
+	 * @return null if the connection is admitted, otherwise the reason for refusing it
+	 */
+	synchronized public String admit(InetAddress address){
+		if(connections>=maxConnections){
+			refused++;
+			return "the server is full";
+		}
+
+		Integer count=perAddress.get(address);
+		if(count==null)count=0;
+		if(count>=maxConnectionsPerAddress){
+			refused++;
+			return "too many connections from your address";
+		}
+
+		perAddress.put(address,count+1);
+		connections++;
+		return null;
+	}
+
+	/**
+	 * Releases a connection previously admitted from the given address
+	 * @param address
+	 */
+	synchronized public void release(InetAddress address){
+		Integer count=perAddress.get(address);
+		if(count==null)return;
+		if(count<=1)
+			perAddress.remove(address);
+		else
+			perAddress.put(address,count-1);
+		connections--;
+	}
+
+	public int getMaxConnections(){
+		return maxConnections;
+	}
+
+	public void setMaxConnections(int max){
+		if(max<1)
+			throw new IllegalArgumentException("At least one connection must be allowed");
+		maxConnections=max;
+	}
+
+	public int getMaxConnectionsPerAddress(){
+		return maxConnectionsPerAddress;
+	}
+
+	public void setMaxConnectionsPerAddress(int max){
+		if(max<1)
+			throw new IllegalArgumentException("At least one connection must be allowed");
+		maxConnectionsPerAddress=max;
+	}
+
+	/**
+	 * @return the number of connections refused so far
+	 */
+	synchronized public int getRefused(){
+		return refused;
+	}
+}
@@ -0,0 +1,289 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * A compact alternative to the text protocol, negotiated with
+ * "PROTOCOL BINARY" as the client's first command.
+ * 
+ * Every message is a frame: a 2 byte length (of what follows), a 1 byte
+ * opcode and the opcode's payload. Numbers are 4 byte big-endian integers,
+ * text is UTF-8 filling the rest of the frame. A LOOKREPLY is the size of
+ * the view (1 byte) followed by its tiles, row by row, two per byte (high
+ * nibble first), using the codes in TILES. A LOOKDELTA is the shift of the
+ * view (2 signed bytes) followed by 3 bytes (column, row and tile code) for
+ * every changed tile. A TAG frame (a number) tags the frame after it with
+ * the sequence number of a pipelined command.
+ * 
+ * client.BinaryCodec is the client's side of it.
+ */
+public class BinaryCodec extends Codec {
+
+	//Server to client
+	public static final byte GOLD=0x01;
+	public static final byte HELLO=0x02;
+	public static final byte LOOKREPLY=0x03;
+	public static final byte SUCCESS=0x04;
+	public static final byte FAIL=0x05;
+	public static final byte CHANGE=0x06;
+	public static final byte STARTTURN=0x07;
+	public static final byte ENDTURN=0x08;
+	public static final byte WIN=0x09;
+	public static final byte LOSE=0x0A;
+	public static final byte MESSAGE=0x0B;
+	public static final byte HITMOD=0x0C;
+	public static final byte TREASUREMOD=0x0D;
+	public static final byte LOOKDELTA=0x0E;
+
+	//Client to server
+	public static final byte CMD_HELLO=0x21;
+	public static final byte CMD_LOOK=0x22;
+	public static final byte CMD_PICKUP=0x23;
+	public static final byte CMD_MOVE=0x24;
+	public static final byte CMD_ATTACK=0x25;
+	public static final byte CMD_ENDTURN=0x26;
+	public static final byte CMD_SHOUT=0x27;
+	public static final byte CMD_SETPLAYERPOS=0x28;
+
+	//The tag of a pipelined command or its response (SEQ), in either
+	//direction; applies to the frame which follows it
+	public static final byte TAG=0x0F;
+
+	//Any other line of text, in either direction
+	public static final byte TEXT=0x7F;
+
+	//The tile characters, indexed by their 4 bit codes
+	public static final String TILES=".#EGAHLSPX?";
+
+	private static final int MAX_FRAME_LENGTH=0xFFFF;
+
+	private static final Charset UTF8=Charset.forName("UTF-8");
+
+	//The frame being received, null while waiting for its length
+	private ByteBuffer pendingFrame=null;
+	//The first byte of a length which has only been half received
+	private int pendingLengthByte=-1;
+	//The tag received for the command in the next frame
+	private String pendingTag=null;
+
+	@Override public ByteBuffer encode(String message){
+		if(message.startsWith("@"))
+			return encodeTagged(message);
+		if(message.startsWith("LOOKREPLY"))
+			return encodeLook(message);
+
+		final int space=message.indexOf(' ');
+		final String head=(space<0)?message:message.substring(0,space);
+		final String arg=(space<0)?"":message.substring(space+1);
+
+		switch(head){
+		case "GOLD":
+			return done(frame(GOLD,4).putInt(Integer.parseInt(arg)));
+		case "HELLO":
+			return textFrame(HELLO,arg);
+		case "SUCCESS":
+			return done(frame(SUCCESS,0));
+		case "FAIL":
+			return textFrame(FAIL,arg);
+		case "CHANGE":
+			return done(frame(CHANGE,0));
+		case "STARTTURN":
+			return done(frame(STARTTURN,0));
+		case "ENDTURN":
+			return done(frame(ENDTURN,0));
+		case "WIN":
+			return done(frame(WIN,0));
+		case "LOSE":
+			return done(frame(LOSE,0));
+		case "MESSAGE":
+			return textFrame(MESSAGE,arg);
+		case "LOOKDELTA":
+			return encodeDelta(arg.split(" "));
+		case "HITMOD":
+			return done(frame(HITMOD,4).putInt(Integer.parseInt(arg)));
+		case "TREASUREMOD":
+			return done(frame(TREASUREMOD,4).putInt(Integer.parseInt(arg)));
+		default:
+			return textFrame(TEXT,message);
+		}
+	}
+
+	@Override public String decode(ByteBuffer in) throws IOException{
+		ByteBuffer frame;
+		while((frame=nextFrame(in))!=null){
+			if(frame.get(0)==TAG){
+				if(frame.remaining()!=5)
+					throw new IOException("TAG frame of "+frame.remaining()+" bytes");
+				pendingTag="@"+frame.getInt(1)+" ";
+				continue;
+			}
+			String command=decodeCommand(frame);
+			if(pendingTag!=null){
+				command=pendingTag+command;
+				pendingTag=null;
+			}
+			return command;
+		}
+		return null;
+	}
+
+	/**
+	 * Collects the next frame from the received bytes
+	 * @return the complete frame, or null if more bytes are needed for it
+	 * @throws IOException if the frame's length is 0
+	 */
+	private ByteBuffer nextFrame(ByteBuffer in) throws IOException{
+		//Wait for both bytes of the length
+		while(pendingFrame==null){
+			if(!in.hasRemaining())return null;
+			int b=in.get()&0xFF;
+			if(pendingLengthByte<0){
+				pendingLengthByte=b;
+			}else{
+				int length=(pendingLengthByte<<8)|b;
+				pendingLengthByte=-1;
+				if(length==0)
+					throw new IOException("Empty frame");
+				pendingFrame=ByteBuffer.allocate(length);
+			}
+		}
+
+		//Copy as much of the frame as has arrived
+		while(pendingFrame.hasRemaining()&&in.hasRemaining())
+			pendingFrame.put(in.get());
+		if(pendingFrame.hasRemaining())return null;
+
+		ByteBuffer frame=pendingFrame;
+		pendingFrame=null;
+		frame.flip();
+		return frame;
+	}
+
+	/**
+	 * Turns a complete frame from the client into a textual command
+	 * @throws IOException if the opcode is not a command's
+	 */
+	private static String decodeCommand(ByteBuffer frame) throws IOException{
+		final byte opcode=frame.get();
+		switch(opcode){
+		case CMD_HELLO:
+			return "HELLO "+text(frame);
+		case CMD_LOOK:
+			return "LOOK";
+		case CMD_PICKUP:
+			return "PICKUP";
+		case CMD_MOVE:
+			return "MOVE "+(char)frame.get();
+		case CMD_ATTACK:
+			return "ATTACK "+(char)frame.get();
+		case CMD_ENDTURN:
+			return "ENDTURN";
+		case CMD_SHOUT:
+			return "SHOUT "+text(frame);
+		case CMD_SETPLAYERPOS:
+			return "SETPLAYERPOS "+frame.getInt()+" "+frame.getInt();
+		case TEXT:
+			return text(frame);
+		default:
+			throw new IOException("Unknown opcode "+opcode);
+		}
+	}
+
+	/**
+	 * A TAG frame followed by the tagged message
+	 */
+	private ByteBuffer encodeTagged(String message){
+		final int space=message.indexOf(' ');
+		final ByteBuffer tag=done(frame(TAG,4).putInt(Integer.parseInt(message.substring(1,space))));
+		final ByteBuffer tagged=encode(message.substring(space+1));
+		final ByteBuffer buffer=ByteBuffer.allocate(tag.remaining()+tagged.remaining());
+		buffer.put(tag).put(tagged);
+		return done(buffer);
+	}
+
+	/**
+	 * Packs a textual LOOKREPLY (header line followed by the rows)
+	 */
+	private static ByteBuffer encodeLook(String message){
+		//Skip the header line
+		int index=message.indexOf('\n')+1;
+
+		//The rows are square, the first one tells the size
+		int size=0;
+		while(index+size<message.length()&&message.charAt(index+size)!='\r'&&message.charAt(index+size)!='\n')
+			size++;
+
+		final ByteBuffer buffer=frame(LOOKREPLY,1+(size*size+1)/2);
+		buffer.put((byte)size);
+		int cells=0,packed=0;
+		for(;index<message.length()&&cells<size*size;index++){
+			char c=message.charAt(index);
+			if(c=='\r'||c=='\n')continue;
+			int code=TILES.indexOf(c);
+			if(code<0)code=TILES.indexOf('?');
+			if(cells%2==0){
+				packed=code<<4;
+			}else{
+				buffer.put((byte)(packed|code));
+			}
+			cells++;
+		}
+		if(cells%2==1)
+			buffer.put((byte)packed);
+		return done(buffer);
+	}
+
+	/**
+	 * Packs the arguments of a textual LOOKDELTA
+	 */
+	private static ByteBuffer encodeDelta(String[] arg){
+		final ByteBuffer buffer=frame(LOOKDELTA,2+(arg.length-2)/3*3);
+		buffer.put(Byte.parseByte(arg[0]));
+		buffer.put(Byte.parseByte(arg[1]));
+		for(int i=2;i+2<arg.length;i+=3){
+			buffer.put((byte)Integer.parseInt(arg[i]));
+			buffer.put((byte)Integer.parseInt(arg[i+1]));
+			int code=TILES.indexOf(arg[i+2].charAt(0));
+			buffer.put((byte)(code<0?TILES.indexOf('?'):code));
+		}
+		return done(buffer);
+	}
+
+	/**
+	 * Allocates a frame and writes its header
+	 * @param opcode
+	 * @param payloadLength
+	 * @return a buffer positioned at the start of the payload
+	 */
+	private static ByteBuffer frame(byte opcode,int payloadLength){
+		ByteBuffer buffer=ByteBuffer.allocate(3+payloadLength);
+		buffer.putShort((short)(1+payloadLength));
+		buffer.put(opcode);
+		return buffer;
+	}
+
+	/**
+	 * A frame whose payload is text, cut short if it does not fit
+	 */
+	private static ByteBuffer textFrame(byte opcode,String text){
+		byte[] bytes=text.getBytes(UTF8);
+		int length=Math.min(bytes.length,MAX_FRAME_LENGTH-1);
+		ByteBuffer buffer=frame(opcode,length);
+		buffer.put(bytes,0,length);
+		return done(buffer);
+	}
+
+	/**
+	 * Makes a filled frame ready to be written
+	 */
+	private static ByteBuffer done(ByteBuffer buffer){
+		buffer.flip();
+		return buffer;
+	}
+
+	private static String text(ByteBuffer frame){
+		return new String(frame.array(),frame.position(),frame.remaining(),UTF8);
+	}
+}
@@ -0,0 +1,79 @@
+package server;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import server.game.Location;
+
+/**
+ * Times how long the server's canvas takes to paint a whole 200x200 map,
+ * e.g. to check that painting does not scale the tiles' images over and
+ * over. Runs without a display: the map is painted into an image.
+ *
+ * Larger maps can be painted through a square viewport in their middle, as
+ * a ServerPanel would show them, e.g. "CanvasBenchmark 1 100 2000 800".
+ * Between paints a few tiles change, as they would in a game.
+ *
+ * Usage: CanvasBenchmark [tile size (default 16)] [paints (default 20)]
+ *        [map size (default 200)] [viewport size in pixels (default: the whole map)]
+ */
+public class CanvasBenchmark {
+
+	//The number of tiles changed between paints
+	private static final int CHANGES=100;
+
+	//The tiles the map is made of, walls and floors mostly
+	private static final String TILES="##########..............................GPSAHLE";
+
+	static public void main(String[] args){
+		final int tileSize=args.length>0?Integer.parseInt(args[0]):16;
+		final int paints=args.length>1?Integer.parseInt(args[1]):20;
+		final int size=args.length>2?Integer.parseInt(args[2]):200;
+		final int viewport=args.length>3?Integer.parseInt(args[3]):size*tileSize;
+
+		final Random random=new Random(42);
+		final char[][] view=new char[size][size];
+		for(int row=0;row<size;row++)
+			for(int col=0;col<size;col++)
+				view[row][col]=TILES.charAt(random.nextInt(TILES.length()));
+
+		final GameCanvas canvas=new GameCanvas(tileSize);
+		canvas.update(view);
+		canvas.setSize(canvas.getPreferredSize());
+		final int width=Math.min(viewport,canvas.getWidth()),height=Math.min(viewport,canvas.getHeight());
+		final BufferedImage image=new BufferedImage(width,height,BufferedImage.TYPE_INT_RGB);
+		final Graphics2D g=image.createGraphics();
+		//Look at the middle of the map
+		g.translate(-(canvas.getWidth()-width)/2,-(canvas.getHeight()-height)/2);
+		g.setClip((canvas.getWidth()-width)/2,(canvas.getHeight()-height)/2,width,height);
+
+		//The first paint scales the images
+		long start=System.nanoTime();
+		canvas.paintComponent(g);
+		final long first=System.nanoTime()-start;
+
+		long total=0,best=Long.MAX_VALUE;
+		for(int i=0;i<paints;i++){
+			final List<Location> changed=new ArrayList<Location>();
+			for(int j=0;j<CHANGES;j++){
+				final int row=random.nextInt(size),col=random.nextInt(size);
+				view[row][col]=TILES.charAt(random.nextInt(TILES.length()));
+				changed.add(new Location(col,row));
+			}
+			start=System.nanoTime();
+			canvas.updateTiles(changed);
+			canvas.paintComponent(g);
+			final long time=System.nanoTime()-start;
+			total+=time;
+			best=Math.min(best,time);
+		}
+		g.dispose();
+
+		System.out.println(size+"x"+size+" tiles of "+tileSize+" px, "+width+"x"+height+" of "+canvas.getWidth()+"x"+canvas.getHeight()+" px painted");
+		System.out.printf("first paint %.2f ms, then %.2f ms on average, %.2f ms at best (%d paints)%n",
+				first/1e6,total/1e6/paints,best/1e6,paints);
+	}
+}
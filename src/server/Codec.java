@@ -0,0 +1,45 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Turns the server's textual messages into bytes for the wire, and the
+ * bytes received from a client back into textual commands.
+ * Instances keep partially received input, so every connection needs
+ * its own.
+ */
+public abstract class Codec {
+
+	/**
+	 * Encodes a message the way it is sent over the network
+	 * @param message - a message as produced by CommandLineUser
+	 * @return a buffer ready to be written
+	 */
+	public abstract ByteBuffer encode(String message);
+
+	/**
+	 * Decodes the next command from the received bytes
+	 * @param in - received bytes, whatever is used up is consumed
+	 * @return the next command, or null if more bytes are needed for it
+	 * @throws IOException if the bytes received cannot be decoded, the
+	 *         connection should be closed
+	 */
+	public abstract String decode(ByteBuffer in) throws IOException;
+
+	/**
+	 * @return whether every message is encoded on its own, the same way
+	 * every time, so that a queued one may be dropped and an encoding
+	 * may be shared between connections
+	 */
+	public boolean isSelfContained(){
+		return true;
+	}
+
+	/**
+	 * Frees whatever the codec holds outside of the heap, once the
+	 * connection has closed. Nothing is encoded after this.
+	 */
+	public void end(){
+	}
+}
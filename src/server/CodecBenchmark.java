@@ -0,0 +1,163 @@
+package server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import server.game.GameLogic;
+
+/**
+ * Compares the text protocol with the binary one (see BinaryCodec) on the
+ * same scripted game: a player on the default map moving about at random
+ * and looking after every move. Reports the bytes each protocol needs per
+ * turn, in both directions, and how long decoding them takes: the
+ * client's commands on the server, the server's messages on the client
+ * (with client.BinaryCodec, or line by line as AbstractClient does).
+ *
+ * Usage: CodecBenchmark [moves (default 1000)] [rounds (default 50)]
+ */
+public class CodecBenchmark {
+
+	private static final String DIRECTIONS="NESW";
+
+	private static final byte[] LINE_SEPARATOR=System.getProperty("line.separator").getBytes();
+
+	/**
+	 * Plays the script, remembering what the server would send
+	 */
+	private static class ScriptedUser extends CommandLineUser {
+
+		private final List<String> sent=new ArrayList<String>();
+
+		ScriptedUser(GameLogic game){
+			super(game);
+			addPlayer();
+		}
+
+		void command(String command){
+			processCommand(command);
+		}
+
+		@Override protected void doOutputMessage(String message){
+			sent.add(message);
+		}
+
+		@Override public void run(){
+		}
+	}
+
+	static public void main(String[] args) throws Exception{
+		final int moves=args.length>0?Integer.parseInt(args[0]):1000;
+		final int rounds=args.length>1?Integer.parseInt(args[1]):50;
+
+		final ScriptedUser user=new ScriptedUser(new GameLogic("maps/Default Map.txt"));
+		final List<String> commands=new ArrayList<String>();
+		final Random random=new Random(42);
+		for(int i=0;i<moves;i++){
+			commands.add("MOVE "+DIRECTIONS.charAt(random.nextInt(DIRECTIONS.length())));
+			commands.add("LOOK");
+		}
+		for(String command:commands)
+			user.command(command);
+		int turns=0;
+		for(String message:user.sent)
+			if(message.equals("STARTTURN"))turns++;
+		turns=Math.max(turns,1);
+
+		System.out.println(commands.size()+" commands, "+user.sent.size()+" messages, "+turns+" turns");
+		run("text",new TextCodec(),commands,user.sent,turns,rounds);
+		run("binary",new BinaryCodec(),commands,user.sent,turns,rounds);
+	}
+
+	private static void run(String name,Codec encoder,List<String> commands,List<String> messages,int turns,int rounds) throws IOException{
+		final boolean binary=encoder instanceof BinaryCodec;
+
+		//What the client sends
+		final ByteArrayOutputStream up=new ByteArrayOutputStream();
+		for(String command:commands){
+			if(binary){
+				up.write(client.BinaryCodec.encode(command));
+			}else{
+				up.write(command.getBytes());
+				up.write(LINE_SEPARATOR);
+			}
+		}
+		final byte[] upBytes=up.toByteArray();
+
+		//What the server sends
+		final ByteArrayOutputStream down=new ByteArrayOutputStream();
+		for(String message:messages){
+			ByteBuffer buffer=encoder.encode(message);
+			down.write(buffer.array(),buffer.arrayOffset()+buffer.position(),buffer.remaining());
+		}
+		final byte[] downBytes=down.toByteArray();
+
+		//The first round warms up
+		long serverNanos=0,clientNanos=0;
+		int decodedCommands=0,decodedLines=0;
+		for(int round=0;round<=rounds;round++){
+			long start=System.nanoTime();
+			final ByteBuffer in=ByteBuffer.wrap(upBytes);
+			final Codec codec=binary?new BinaryCodec():new TextCodec();
+			decodedCommands=0;
+			while(codec.decode(in)!=null)
+				decodedCommands++;
+			final long server=System.nanoTime()-start;
+
+			start=System.nanoTime();
+			decodedLines=decodeOnClient(downBytes,binary);
+			final long client=System.nanoTime()-start;
+
+			if(round>0){
+				serverNanos+=server;
+				clientNanos+=client;
+			}
+		}
+		if(decodedCommands!=commands.size())
+			throw new IllegalStateException(name+" decoded "+decodedCommands+" of "+commands.size()+" commands");
+
+		System.out.printf("%-6s %7.1f bytes per turn (%.1f to the server, %.1f to the client, %d lines), "
+				+"decoding a turn takes %.2f us on the server, %.2f us on the client%n",
+				name,(upBytes.length+downBytes.length)/(double)turns,upBytes.length/(double)turns,
+				downBytes.length/(double)turns,decodedLines,
+				serverNanos/1e3/rounds/turns,clientNanos/1e3/rounds/turns);
+	}
+
+	/**
+	 * Decodes the server's messages the way the client does
+	 * @return the number of lines decoded
+	 */
+	private static int decodeOnClient(byte[] bytes,boolean binary) throws IOException{
+		final DataInputStream in=new DataInputStream(new ByteArrayInputStream(bytes));
+		int lines=0;
+		if(binary){
+			final ArrayDeque<String> decoded=new ArrayDeque<String>();
+			while(in.available()>0){
+				client.BinaryCodec.decode(in,decoded);
+				lines+=decoded.size();
+				decoded.clear();
+			}
+		}else{
+			final ByteArrayOutputStream line=new ByteArrayOutputStream();
+			int b;
+			while((b=in.read())>=0){
+				if(b!='\n'){
+					line.write(b);
+					continue;
+				}
+				String text=line.toString();
+				if(text.endsWith("\r"))
+					text=text.substring(0,text.length()-1);
+				line.reset();
+				lines++;
+			}
+		}
+		return lines;
+	}
+}
@@ -4,6 +4,8 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
+import server.game.Action;
+import server.game.ActionsException;
 import server.game.CommandException;
 import server.game.CompassDirection;
 import server.game.GameLogic;
@@ -19,7 +21,9 @@ import server.game.PlayerListener;
 public abstract class CommandLineUser implements PlayerListener, Runnable {
 	// The game which the command line user will operate on.
 	// This is private to enforce the use of "processCommand".
-	protected final GameLogic game;
+	// It only changes when the user moves to another game, see changeGame,
+	// and may be null until then.
+	protected volatile GameLogic game;
 
 	// The player must be added onto the map. Initially it is not.
 	private boolean playerAdded = false;
@@ -35,6 +39,20 @@ public abstract class CommandLineUser implements PlayerListener, Runnable {
 	private boolean waitingForResponse = false;
 	private final List<String> messageBuffer;
 
+	// Set if the user understands LOOKDELTA, answers LOOK relative to the
+	// last view it has been sent. Negotiated by the thread reading the
+	// user's input, read by whichever thread outputs a view.
+	private volatile LookDelta lookDelta = null;
+
+	// Set if the user pipelines its commands: responses then carry the tag
+	// of their command, so nothing has to be held back until they are sent
+	private volatile boolean sequenced = false;
+	private String responseTag = null;
+
+	// Views are computed and output under this lock, so that they reach the
+	// user in the order they have been computed in (LOOKDELTA relies on it)
+	private final Object viewLock = new Object();
+
 	CommandLineUser(GameLogic game) {
 		this.game = game;
 
@@ -88,6 +106,14 @@ public abstract class CommandLineUser implements PlayerListener, Runnable {
 	public void lose() {
 		outputMessage("LOSE",false);
 	}
+
+	/**
+	 * Greets the user again for a new match, just as at the start
+	 */
+	@Override
+	public void newMatch(int goal) {
+		outputMessage("GOLD " + goal, false);
+	}
 	
 	/**
 	 * Inform the user that something visible has changed
@@ -158,6 +184,62 @@ public abstract class CommandLineUser implements PlayerListener, Runnable {
 		this.playerID = this.game.addPlayer(this);
 	}
 
+	/**
+	 * Answers LOOK with a LOOKDELTA from now on, whenever that is smaller
+	 * 
+	 * @param delta
+	 *            remembers the views sent, null to always send LOOKREPLY
+	 */
+	void setLookDelta(LookDelta delta) {
+		this.lookDelta = delta;
+	}
+
+	/**
+	 * Tags responses instead of holding other messages back until they have
+	 * been sent, see setResponseTag
+	 * 
+	 * @param isSequenced
+	 */
+	void setSequenced(boolean isSequenced) {
+		this.sequenced = isSequenced;
+	}
+
+	/**
+	 * Sets the tag of the command being processed, which its response will
+	 * start with
+	 * 
+	 * @param tag
+	 *            the tag, or null if the command has none
+	 */
+	void setResponseTag(String tag) {
+		this.responseTag = tag;
+	}
+
+	/**
+	 * Sends the player's current view without being asked for it. It is not
+	 * held back behind the response to a pending command, since it stands
+	 * in for a LOOK the user did not have to send.
+	 */
+	protected void pushView() {
+		if (!this.playerAdded) {
+			return;
+		}
+		synchronized (this.viewLock) {
+			doOutputMessage(lookMessage());
+		}
+	}
+
+	/**
+	 * @return the answer to LOOK, either a LOOKREPLY or a LOOKDELTA
+	 */
+	private String lookMessage() {
+		if (this.lookDelta == null) {
+			return "LOOKREPLY" + System.getProperty("line.separator")
+					+ this.game.clientLook(this.playerID);
+		}
+		return this.lookDelta.next(this.game.clientView(this.playerID));
+	}
+
 	protected void removePlayer() {
 		if (!this.playerAdded) {
 			throw new RuntimeException("Player not added");
@@ -167,6 +249,68 @@ public abstract class CommandLineUser implements PlayerListener, Runnable {
 		this.game.removePlayer(this.playerID, true);
 	}
 
+	/**
+	 * Leaves the player in the game, without a turn, so that it can be
+	 * resumed by another user
+	 */
+	protected void detachPlayer() {
+		if (!this.playerAdded) {
+			throw new RuntimeException("Player not added");
+		}
+		this.playerAdded = false;
+
+		this.game.detachPlayer(this.playerID);
+	}
+
+	/**
+	 * Moves the user to another game, before its player is added there. Its
+	 * player must have been removed from the game it was in, if any.
+	 * 
+	 * @param newGame
+	 */
+	protected final void changeGame(GameLogic newGame) {
+		if (this.playerAdded) {
+			throw new RuntimeException("Player still in the game");
+		}
+		this.game = newGame;
+		synchronized (this.viewLock) {
+			if (this.lookDelta != null) {
+				this.lookDelta.forget();
+			}
+		}
+	}
+
+	/**
+	 * Takes over a detached player, instead of adding one for this user. The
+	 * user is told where it stands with "RESUMED goal gold hp", followed by
+	 * its view, instead of the usual greeting.
+	 * 
+	 * @param oldPlayerID
+	 *            the detached player, in the user's game
+	 * @return whether the player has been taken over, the user has been sent
+	 *         FAIL otherwise
+	 */
+	protected final boolean resumePlayer(int oldPlayerID) {
+		if (this.playerAdded) {
+			throw new RuntimeException("Player already added");
+		}
+		try {
+			this.waitingForResponse = true;
+			final String state = this.game.clientResume(oldPlayerID, this);
+			this.playerAdded = true;
+			this.playerID = oldPlayerID;
+
+			synchronized (this.viewLock) {
+				outputMessage("RESUMED " + state, true);
+				doOutputMessage(lookMessage());
+			}
+			return true;
+		} catch (final CommandException e) {
+			outputMessage("FAIL " + e.getMessage(), true);
+			return false;
+		}
+	}
+
 	/**
 	 * Inherited by the base class to handle outputting textual messages in the
 	 * correct manner, e.g. printing to the screen or read by the bot.
@@ -177,6 +321,31 @@ public abstract class CommandLineUser implements PlayerListener, Runnable {
 	 */
 	protected abstract void doOutputMessage(String message);
 
+	/**
+	 * Outputs a message which is being sent to many users at once. It is
+	 * held back like any other message while a response is awaited.
+	 * 
+	 * @param message
+	 *            the message, shared by all its recipients
+	 */
+	final void outputShared(SharedMessage message) {
+		if (this.waitingForResponse && !this.sequenced) {
+			this.messageBuffer.add(message.getText());
+		} else {
+			doOutputShared(message);
+		}
+	}
+
+	/**
+	 * Outputs a message shared with other users, by default like any other
+	 * message. Sub-classes may make use of it being shared.
+	 * 
+	 * @param message
+	 */
+	protected void doOutputShared(SharedMessage message) {
+		doOutputMessage(message.getText());
+	}
+
 	/**
 	 * Processes the command and an optional argument
 	 * 
@@ -207,8 +376,9 @@ public abstract class CommandLineUser implements PlayerListener, Runnable {
 				throw new CommandException("LOOK does not take an argument");
 			}
 			this.waitingForResponse = true;
-			outputMessage("LOOKREPLY" + System.getProperty("line.separator")
-					+ this.game.clientLook(this.playerID), true);
+			synchronized (this.viewLock) {
+				outputMessage(lookMessage(), true);
+			}
 
 		} else if (command.equals("PICKUP")) {
 			if (arg != null) {
@@ -241,6 +411,22 @@ public abstract class CommandLineUser implements PlayerListener, Runnable {
 
 			outputSuccess();
 
+		} else if (command.equals("DO")) {
+			// Several actions at once, e.g. DO MOVE N, MOVE E, PICKUP
+			if (arg == null) {
+				throw new CommandException("DO needs a list of actions");
+			}
+
+			final List<Action> actions = getActions(arg);
+			this.waitingForResponse = true;
+			try {
+				this.game.clientActions(actions, this.playerID);
+			} catch (final ActionsException e) {
+				throw new CommandException("action " + (e.getDone() + 1)
+						+ " of " + actions.size() + ": " + e.getMessage());
+			}
+			outputSuccess();
+
 		} else if (command.equals("ENDTURN")) {
 			this.game.clientEndTurn(this.playerID, false);
 
@@ -280,6 +466,32 @@ public abstract class CommandLineUser implements PlayerListener, Runnable {
 		}
 	}
 
+	/**
+	 * Parses the actions of a DO command, separated by commas
+	 * 
+	 * @param string
+	 *            the actions, written like the commands MOVE, ATTACK and
+	 *            PICKUP
+	 * @return the actions
+	 * @throws CommandException
+	 */
+	private List<Action> getActions(String string) throws CommandException {
+		final List<Action> actions = new ArrayList<Action>();
+		for (final String action : string.split(",")) {
+			final String actionSplit[] = action.trim().split(" +", 2);
+			if (actionSplit[0].equals("PICKUP") && (actionSplit.length == 1)) {
+				actions.add(Action.pickup());
+			} else if (actionSplit[0].equals("MOVE") && (actionSplit.length == 2)) {
+				actions.add(Action.move(getDirection(actionSplit[1])));
+			} else if (actionSplit[0].equals("ATTACK") && (actionSplit.length == 2)) {
+				actions.add(Action.attack(getDirection(actionSplit[1])));
+			} else {
+				throw new CommandException("invalid action " + action.trim());
+			}
+		}
+		return actions;
+	}
+
 	/**
 	 * Obtains a compass direction from a string. Used to ensure the correct
 	 * exception type is thrown, and for consistency between MOVE and ATTACK.
@@ -334,6 +546,15 @@ public abstract class CommandLineUser implements PlayerListener, Runnable {
 		return rv;
 	}
 
+	/**
+	 * Sends a failure in response to a command handled by a sub-class
+	 * 
+	 * @param reason
+	 */
+	protected final void outputFailure(String reason) {
+		outputMessage("FAIL " + reason, true);
+	}
+
 	/**
 	 * Sends a success message in the event that a command has succeeded
 	 */
@@ -357,6 +578,16 @@ public abstract class CommandLineUser implements PlayerListener, Runnable {
 	 *            "SUCCESS" or "FAIL".
 	 */
 	private final void outputMessage(String message, boolean isResponse) {
+		// Tagged responses can be told apart from everything else
+		if (this.sequenced) {
+			if (isResponse && (this.responseTag != null)) {
+				doOutputMessage(this.responseTag + " " + message);
+			} else {
+				doOutputMessage(message);
+			}
+			return;
+		}
+
 		// If the user is waiting for a response, buffer the message
 		if (this.waitingForResponse) {
 			if (isResponse) {
@@ -0,0 +1,47 @@
+package server;
+
+import java.util.List;
+
+import server.game.Broadcaster;
+import server.game.PlayerListener;
+
+/**
+ * Sends the game's broadcasts to the server's users as shared messages,
+ * encoded once instead of once per user. The messages are worded as
+ * CommandLineUser words them.
+ */
+class ConnectionBroadcaster implements Broadcaster {
+
+	private final ServerLogic server;
+
+	ConnectionBroadcaster(ServerLogic newServer){
+		server=newServer;
+	}
+
+	@Override public void sendMessage(List<PlayerListener> listeners,String message){
+		SharedMessage shared=share("MESSAGE "+message,listeners);
+		for(PlayerListener listener:listeners){
+			if(listener instanceof CommandLineUser)
+				((CommandLineUser)listener).outputShared(shared);
+			else
+				listener.sendMessage(message);
+		}
+	}
+
+	@Override public void lose(List<PlayerListener> listeners){
+		SharedMessage shared=share("LOSE",listeners);
+		for(PlayerListener listener:listeners){
+			if(listener instanceof CommandLineUser)
+				((CommandLineUser)listener).outputShared(shared);
+			else
+				listener.lose();
+		}
+	}
+
+	private SharedMessage share(String text,List<PlayerListener> listeners){
+		//Logged once, rather than once per user
+		if(server.isLogging(ServerLog.Level.TRAFFIC))
+			server.handleMessage(ServerLog.Level.TRAFFIC,"TO "+listeners.size()+" players: "+text);
+		return new SharedMessage(text,server.getStats());
+	}
+}
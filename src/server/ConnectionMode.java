@@ -0,0 +1,21 @@
+package server;
+
+/**
+ * The ways in which ServerLogic can serve its clients
+ */
+public enum ConnectionMode {
+	/**
+	 * Every client gets its own thread blocking on the socket (NetworkUser)
+	 */
+	THREAD_PER_CLIENT,
+	/**
+	 * Like THREAD_PER_CLIENT, but the listener and every client run
+	 * on virtual threads. Requires JDK 21 or later, older JVMs refuse
+	 * the mode rather than falling back to platform threads.
+	 */
+	VIRTUAL_THREADS,
+	/**
+	 * A small fixed set of selector loops serve all clients (NioUser)
+	 */
+	NIO
+}
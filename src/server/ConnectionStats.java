@@ -0,0 +1,337 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters describing the load on the server's connections.
+ * Used to compare the different connection modes side by side.
+ */
+public class ConnectionStats {
+
+	//Number of currently open connections
+	private final AtomicLong openConnections=new AtomicLong();
+
+	//Number of processed commands and the total time spent on them
+	private final AtomicLong commands=new AtomicLong();
+	private final AtomicLong commandNanos=new AtomicLong();
+
+	//Number of batched writes and the messages and bytes written by them
+	private final AtomicLong flushes=new AtomicLong();
+	private final AtomicLong flushedMessages=new AtomicLong();
+	private final AtomicLong flushedBytes=new AtomicLong();
+
+	//Redundant messages dropped and clients disconnected for not keeping up
+	private final AtomicLong droppedMessages=new AtomicLong();
+	private final AtomicLong evictions=new AtomicLong();
+
+	//Views sent to clients which understand deltas, in full or as deltas,
+	//and the tiles actually sent out of the tiles in those views
+	private final AtomicLong fullLooks=new AtomicLong();
+	private final AtomicLong deltaLooks=new AtomicLong();
+	private final AtomicLong lookTilesSent=new AtomicLong();
+	private final AtomicLong lookTiles=new AtomicLong();
+
+	//Bytes given to and produced by compression, and the time it took
+	private final AtomicLong uncompressedBytes=new AtomicLong();
+	private final AtomicLong compressedBytes=new AtomicLong();
+	private final AtomicLong compressions=new AtomicLong();
+	private final AtomicLong compressionNanos=new AtomicLong();
+
+	//Encodings made for broadcasts, and the connections they were queued on
+	private final AtomicLong broadcastEncodes=new AtomicLong();
+	private final AtomicLong broadcastDeliveries=new AtomicLong();
+
+	//Views pushed instead of CHANGE, and changes covered by an earlier push
+	//or by a CHANGE still queued
+	private final AtomicLong pushedViews=new AtomicLong();
+	private final AtomicLong coalescedChanges=new AtomicLong();
+
+	//Players taken back by their clients, and players who were not in time
+	private final AtomicLong resumedSessions=new AtomicLong();
+	private final AtomicLong expiredSessions=new AtomicLong();
+
+	//Games reset for a new match, and the time the resets took
+	private final AtomicLong matchResets=new AtomicLong();
+	private final AtomicLong matchResetNanos=new AtomicLong();
+
+	void connectionOpened(){
+		openConnections.incrementAndGet();
+	}
+
+	void connectionClosed(){
+		openConnections.decrementAndGet();
+	}
+
+	/**
+	 * Records that a command has been processed
+	 * @param nanos - how long it took to process it
+	 */
+	void commandProcessed(long nanos){
+		commands.incrementAndGet();
+		commandNanos.addAndGet(nanos);
+	}
+
+	/**
+	 * Records that a batch of messages has been written to a connection
+	 * @param messages - number of messages in the batch
+	 * @param bytes - size of the batch
+	 */
+	void flushed(int messages,long bytes){
+		flushes.incrementAndGet();
+		flushedMessages.addAndGet(messages);
+		flushedBytes.addAndGet(bytes);
+	}
+
+	void messageDropped(){
+		droppedMessages.incrementAndGet();
+	}
+
+	void clientEvicted(){
+		evictions.incrementAndGet();
+	}
+
+	/**
+	 * Records that a view has been sent to a client which understands deltas
+	 * @param delta - whether it has been sent as a delta
+	 * @param tilesSent - the number of tiles sent
+	 * @param tiles - the number of tiles in the view
+	 */
+	void lookSent(boolean delta,int tilesSent,int tiles){
+		(delta?deltaLooks:fullLooks).incrementAndGet();
+		lookTilesSent.addAndGet(tilesSent);
+		lookTiles.addAndGet(tiles);
+	}
+
+	/**
+	 * Records that a message has been compressed
+	 * @param before - its size before compression
+	 * @param after - its size after compression
+	 * @param nanos - how long it took
+	 */
+	void compressed(int before,int after,long nanos){
+		compressions.incrementAndGet();
+		uncompressedBytes.addAndGet(before);
+		compressedBytes.addAndGet(after);
+		compressionNanos.addAndGet(nanos);
+	}
+
+	void broadcastEncoded(){
+		broadcastEncodes.incrementAndGet();
+	}
+
+	void broadcastShared(){
+		broadcastDeliveries.incrementAndGet();
+	}
+
+	void viewPushed(){
+		pushedViews.incrementAndGet();
+	}
+
+	void changeCoalesced(){
+		coalescedChanges.incrementAndGet();
+	}
+
+	void sessionResumed(){
+		resumedSessions.incrementAndGet();
+	}
+
+	void sessionExpired(){
+		expiredSessions.incrementAndGet();
+	}
+
+	/**
+	 * Records that a game has been reset for a new match
+	 * @param nanos - how long it took
+	 */
+	void matchReset(long nanos){
+		matchResets.incrementAndGet();
+		matchResetNanos.addAndGet(nanos);
+	}
+
+	/**
+	 * @return the number of currently open connections
+	 */
+	public long getOpenConnections(){
+		return openConnections.get();
+	}
+
+	/**
+	 * @return the number of commands processed so far
+	 */
+	public long getCommands(){
+		return commands.get();
+	}
+
+	/**
+	 * @return the mean time spent on processing a command, in nanoseconds
+	 */
+	public long getMeanCommandNanos(){
+		long count=commands.get();
+		return count==0?0:commandNanos.get()/count;
+	}
+
+	/**
+	 * @return the number of batched writes so far
+	 */
+	public long getFlushes(){
+		return flushes.get();
+	}
+
+	/**
+	 * @return the mean number of messages written per batch (the batching factor)
+	 */
+	public double getMessagesPerFlush(){
+		long count=flushes.get();
+		return count==0?0:(double)flushedMessages.get()/count;
+	}
+
+	/**
+	 * @return the mean number of bytes written per batch
+	 */
+	public double getBytesPerFlush(){
+		long count=flushes.get();
+		return count==0?0:(double)flushedBytes.get()/count;
+	}
+
+	/**
+	 * @return the number of redundant messages dropped for slow clients
+	 */
+	public long getDroppedMessages(){
+		return droppedMessages.get();
+	}
+
+	/**
+	 * @return the number of clients disconnected for not keeping up
+	 */
+	public long getEvictions(){
+		return evictions.get();
+	}
+
+	/**
+	 * @return the number of views sent in full to clients which understand deltas
+	 */
+	public long getFullLooks(){
+		return fullLooks.get();
+	}
+
+	/**
+	 * @return the number of views sent as deltas
+	 */
+	public long getDeltaLooks(){
+		return deltaLooks.get();
+	}
+
+	/**
+	 * @return the share of the tiles in the views which had to be sent
+	 */
+	public double getLookTileRatio(){
+		long count=lookTiles.get();
+		return count==0?0:(double)lookTilesSent.get()/count;
+	}
+
+	/**
+	 * @return the size of the compressed output relative to its original size
+	 */
+	public double getCompressionRatio(){
+		long before=uncompressedBytes.get();
+		return before==0?0:(double)compressedBytes.get()/before;
+	}
+
+	/**
+	 * @return the number of bytes compression has saved so far
+	 */
+	public long getCompressionSavedBytes(){
+		return uncompressedBytes.get()-compressedBytes.get();
+	}
+
+	/**
+	 * @return the mean time spent on compressing a message, in nanoseconds
+	 */
+	public long getMeanCompressionNanos(){
+		long count=compressions.get();
+		return count==0?0:compressionNanos.get()/count;
+	}
+
+	/**
+	 * @return the number of times a broadcast has been encoded
+	 */
+	public long getBroadcastEncodes(){
+		return broadcastEncodes.get();
+	}
+
+	/**
+	 * @return the number of times a broadcast has been queued on a connection
+	 */
+	public long getBroadcastDeliveries(){
+		return broadcastDeliveries.get();
+	}
+
+	/**
+	 * @return the number of views pushed to clients instead of CHANGE
+	 */
+	public long getPushedViews(){
+		return pushedViews.get();
+	}
+
+	/**
+	 * @return the number of changes which did not need a push of their own
+	 */
+	public long getCoalescedChanges(){
+		return coalescedChanges.get();
+	}
+
+	/**
+	 * @return the number of players taken back by a reconnected client
+	 */
+	public long getResumedSessions(){
+		return resumedSessions.get();
+	}
+
+	/**
+	 * @return the number of players removed because their client did not
+	 *         come back in time
+	 */
+	public long getExpiredSessions(){
+		return expiredSessions.get();
+	}
+
+	/**
+	 * @return the number of games reset for a new match
+	 */
+	public long getMatchResets(){
+		return matchResets.get();
+	}
+
+	/**
+	 * @return the mean time spent on resetting a game, in nanoseconds
+	 */
+	public long getMeanMatchResetNanos(){
+		long count=matchResets.get();
+		return count==0?0:matchResetNanos.get()/count;
+	}
+
+	@Override public String toString(){
+		return "connections="+getOpenConnections()
+				+" commands="+getCommands()
+				+" meanCommandNanos="+getMeanCommandNanos()
+				+" flushes="+getFlushes()
+				+" messagesPerFlush="+String.format("%.2f",getMessagesPerFlush())
+				+" bytesPerFlush="+String.format("%.1f",getBytesPerFlush())
+				+" dropped="+getDroppedMessages()
+				+" evictions="+getEvictions()
+				+" fullLooks="+getFullLooks()
+				+" deltaLooks="+getDeltaLooks()
+				+" lookTileRatio="+String.format("%.3f",getLookTileRatio())
+				+" compressionRatio="+String.format("%.3f",getCompressionRatio())
+				+" compressionSaved="+getCompressionSavedBytes()
+				+" meanCompressionNanos="+getMeanCompressionNanos()
+				+" broadcastEncodes="+getBroadcastEncodes()
+				+" broadcastDeliveries="+getBroadcastDeliveries()
+				+" pushedViews="+getPushedViews()
+				+" coalescedChanges="+getCoalescedChanges()
+				+" resumedSessions="+getResumedSessions()
+				+" expiredSessions="+getExpiredSessions()
+				+" matchResets="+getMatchResets()
+				+" meanMatchResetNanos="+getMeanMatchResetNanos();
+	}
+}
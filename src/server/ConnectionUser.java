@@ -0,0 +1,681 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * What NetworkUser and NioUser have in common: a client on the other end
+ * of a connection, whose output is queued and written in batches.
+ * Everything produced while the commands received in one read are
+ * processed (including the buffered messages released by the responses)
+ * is written at once, when they are done. Output caused by others is never
+ * written by the thread which caused it, so the game's lock is not held
+ * while waiting for a slow client.
+ * 
+ * The commands are not processed by the thread which reads them, but on
+ * the executor of the client's room, see Room. The client's first command
+ * (after PROTOCOL) chooses its room: "ROOM name" that room, anything else
+ * the default room. Only then is its player added, and the client greeted
+ * with GOLD; until then it is in no room. "ROOM name" later on (before any
+ * command of the game) moves the client to another room, where it is
+ * greeted with GOLD again.
+ * 
+ * A client may start with "PROTOCOL" followed by the features it would
+ * like to use (BINARY, see BinaryCodec, DEFLATE, see DeflateCodec, DELTA,
+ * see LookDelta, SEQ and PUSH).
+ * The server answers, in text, with "PROTOCOL" followed by the features it
+ * has accepted, and uses them from then on in both directions.
+ * 
+ * With SEQ the client may pipeline its commands: a command starting with
+ * "@tag " (the client's sequence number) is answered with a response
+ * starting with the same tag, and other messages are no longer held back
+ * until the response has been sent. Commands are still processed one at
+ * a time, in the order they arrive.
+ * 
+ * With PUSH the client is sent its new view instead of CHANGE. All the
+ * changes made by one command of another player result in a single view,
+ * since the view can only be computed once that command has released the
+ * game's lock.
+ * 
+ * Unless the server's grace period is 0, the client is sent "SESSION token"
+ * after GOLD. When the connection closes the player is kept for the grace
+ * period, and a new connection may take it back with "RESUME token" as
+ * its first command (after PROTOCOL), see SessionRegistry and
+ * CommandLineUser.resumePlayer. The new connection goes to the player's
+ * room, and is sent "RESUMED goal gold hp", the view and SESSION instead
+ * of GOLD. If there is no player to take back it is sent FAIL, and starts
+ * in the default room with a new player.
+ */
+public abstract class ConnectionUser extends CommandLineUser implements AutoCloseable{
+
+	//Most commands a client may have waiting for its room: reading stops
+	//there, until the room has worked through half of them
+	private static final int MAX_BACKLOG=256;
+
+	AtomicBoolean closed=new AtomicBoolean(true);
+
+	//The server who initiated this client
+	protected final ServerLogic server;
+
+	//The address of the client, kept for the logs and for releasing the connection
+	protected final InetAddress inetAddress;
+	protected final String address;
+
+	//Output waiting to be written
+	protected final OutboundQueue outbound;
+
+	//Set once the client has been found too slow and is being disconnected
+	private final AtomicBoolean evicted=new AtomicBoolean(false);
+
+	//Set while a command of this client is processed, output is held back until it is done
+	private volatile boolean processing=false;
+
+	//Encodes our output and decodes the client's input, may only be changed by negotiation
+	private volatile Codec codec=new TextCodec();
+	//Messages are encoded and queued under this lock, so that none of them
+	//is encoded for one codec but queued after the switch to another
+	private final Object encodeLock=new Object();
+
+	//Negotiation is only allowed before the first command
+	private volatile boolean commandSeen=false;
+
+	//Set once the client has given a command of the game, after which it
+	//cannot change rooms
+	private boolean playing=false;
+
+	//Set once the client has asked for the connection to be closed
+	private boolean inputEnded=false;
+
+	//The room the client is in, null until its first command has chosen one
+	private volatile Room room=null;
+	//Where the commands of a client which is in no room are processed
+	private final Room lobby;
+	//Set once the player has been added to the room's game; only used on
+	//the room's executor
+	private boolean entered=false;
+	//The session whose player enter() takes over, instead of adding one
+	private SessionRegistry.Session resuming=null;
+
+	//The commands received but not processed yet, in the order they
+	//arrived; an empty one stands for the end of the input
+	private final Queue<String> commands=new ConcurrentLinkedQueue<String>();
+	//How many there are, and whether reading has been paused because of it
+	private final AtomicInteger backlog=new AtomicInteger();
+	private final AtomicBoolean readingPaused=new AtomicBoolean(false);
+	//Set while a Batch is waiting for, or running on, the room's executor
+	private final AtomicBoolean batchScheduled=new AtomicBoolean(false);
+	private final Runnable batch=new Batch();
+
+	//Set if the client tags its commands with sequence numbers, negotiated
+	//by the reader while the commands are processed by the room's executor
+	private volatile boolean sequenced=false;
+
+	//The session of the player, null if players are not kept for resuming
+	private String session=null;
+
+	//Set if the client wants its view pushed instead of being sent CHANGE
+	private volatile boolean push=false;
+	//Set while a push is waiting to be done, further changes are covered by it
+	private final AtomicBoolean pushScheduled=new AtomicBoolean(false);
+	private final Runnable pushTask=new Runnable(){
+		@Override public void run(){
+			//Changes made from now on need another push
+			pushScheduled.set(false);
+			if(closed.get())return;
+			try{
+				pushView();
+				server.getStats().viewPushed();
+			}catch(RuntimeException e){
+				server.handleError(e);
+			}
+		}
+	};
+
+	/**
+	 * @param newServer
+	 * @param newAddress
+	 */
+	ConnectionUser(ServerLogic newServer,InetAddress newAddress){
+		//The game is that of the room the client chooses
+		super(null);
+		server=newServer;
+		lobby=server.getRooms().getDefault();
+		inetAddress=newAddress;
+		address=inetAddress.getHostAddress();
+		outbound=new OutboundQueue(server.getOutboundHighWaterMark(),server.getSlowConsumerTimeout());
+	}
+
+	/**
+	 * Decodes every complete command in the received bytes and hands them
+	 * to the room's executor, which processes them and writes everything
+	 * they produced in one go. A PROTOCOL which comes first is dealt with
+	 * straight away, since it decides how the rest is decoded. Once the room
+	 * is MAX_BACKLOG commands behind, reading is paused until it catches up.
+	 * @param in
+	 * @throws IOException if the input cannot be decoded
+	 */
+	protected final void processInput(ByteBuffer in) throws IOException{
+		boolean received=false;
+		String command;
+		//The codec may change between two commands
+		while(!closed.get()&&!inputEnded&&(command=codec.decode(in))!=null){
+			// Test for EOF (ctrl-D)
+			if(command.isEmpty()){
+				inputEnded=true;
+			}else if(!commandSeen&&isProtocol(command)){
+				processLine(command);
+				requestFlush();
+			}else{
+				commands.add(command);
+				backlog.incrementAndGet();
+				received=true;
+			}
+			commandSeen=true;
+		}
+		if(inputEnded){
+			commands.add("");
+			backlog.incrementAndGet();
+		}
+		if(received||inputEnded)
+			scheduleBatch();
+		if(backlog.get()>=MAX_BACKLOG&&readingPaused.compareAndSet(false,true)){
+			pauseReading();
+			//The room may have caught up meanwhile, without seeing the flag
+			resumeReadingIfCaughtUp();
+		}
+	}
+
+	/**
+	 * Lets the client be read from again, once the room has worked through
+	 * enough of its commands
+	 */
+	private void resumeReadingIfCaughtUp(){
+		if(backlog.get()<=MAX_BACKLOG/2&&readingPaused.compareAndSet(true,false))
+			resumeReading();
+	}
+
+	private void scheduleBatch(){
+		if(batchScheduled.compareAndSet(false,true))
+			executor().execute(batch);
+	}
+
+	/**
+	 * @return the room whose executor the client's commands run on, the
+	 *         lobby while the client is in no room
+	 */
+	private Room executor(){
+		final Room current=room;
+		return (current==null)?lobby:current;
+	}
+
+	/**
+	 * Processes the commands received so far, on the room's executor. Once
+	 * the client has chosen a room, or a ROOM has moved it, the commands
+	 * after it are left for a Batch on the new room's executor, which adds
+	 * the player first, so that they never run alongside that room's other
+	 * clients.
+	 */
+	private class Batch implements Runnable{
+		@Override public void run(){
+			final Room current=executor();
+			//Whether the client has asked for the connection to be closed
+			boolean last=false;
+			processing=true;
+			try{
+				String line;
+				while(!closed.get()&&(room==null||room==current)){
+					if(room!=null&&!entered)
+						enter();
+					if((line=commands.peek())==null)break;
+					//Any command but ROOM starts the client in the default room
+					if(room==null&&!line.isEmpty()&&!isAnsweredWithoutRoom(line)){
+						joinDefault();
+						continue;
+					}
+					commands.poll();
+					backlog.decrementAndGet();
+					if(line.isEmpty()){
+						last=true;
+						break;
+					}
+					processLine(line);
+				}
+				//A room whose game is over moves on to a new match
+				if(room==current&&current.getGame().isOver())
+					server.getRooms().finished(current);
+			}finally{
+				//Clear the flag first, so that output queued meanwhile by others is not missed
+				processing=false;
+				requestFlush();
+				batchScheduled.set(false);
+				//Commands may have arrived after the last poll, or be left for another room
+				if(!last&&!closed.get()&&(!commands.isEmpty()||(room!=null&&room!=current)))
+					scheduleBatch();
+				resumeReadingIfCaughtUp();
+			}
+			if(last)
+				close();
+		}
+	}
+
+	/**
+	 * @param line - a command received from a client which is in no room
+	 * @return whether it is a ROOM or a RESUME, which choose the room, or
+	 *         a PROTOCOL (which is refused by now)
+	 */
+	private boolean isAnsweredWithoutRoom(String line){
+		String command=line;
+		if(sequenced&&command.startsWith("@")){
+			int space=command.indexOf(' ');
+			command=(space<0)?"":command.substring(space+1);
+		}
+		return command.startsWith("ROOM ")||command.startsWith("RESUME ")||isProtocol(command);
+	}
+
+	/**
+	 * Starts the client in the default room, its player is added by enter()
+	 */
+	private void joinDefault(){
+		try{
+			room=server.getRooms().join(RoomRegistry.DEFAULT);
+		}catch(IOException e){
+			server.handleError(e);
+			close();
+		}
+	}
+
+	/**
+	 * Adds the player to the game of the room the client has chosen, or
+	 * takes over the player it has resumed, on the room's executor. The
+	 * connection is closed if no player can be added.
+	 */
+	private void enter(){
+		changeGame(room.getGame());
+		final SessionRegistry.Session taken=resuming;
+		resuming=null;
+		if(taken!=null&&takeOver(taken)){
+			entered=true;
+			return;
+		}
+		try{
+			addPlayer();
+		}catch(RuntimeException e){
+			server.handleError(e);
+			close();
+			return;
+		}
+		entered=true;
+	}
+
+	private static boolean isProtocol(String command){
+		return command.equals("PROTOCOL")||command.startsWith("PROTOCOL ");
+	}
+
+	/**
+	 * @param tag - "@" followed by what the client has tagged a command with
+	 * @return whether it is a sequence number, which fits the 4 bytes of a
+	 *         binary TAG frame
+	 */
+	private static boolean isTag(String tag){
+		if(tag.length()<2||tag.length()>10)return false;
+		for(int i=1;i<tag.length();i++)
+			if(tag.charAt(i)<'0'||tag.charAt(i)>'9')return false;
+		return true;
+	}
+
+	/**
+	 * Processes a line received from the client
+	 * @param command
+	 */
+	private void processLine(String command){
+		if(server.isLogging(ServerLog.Level.TRAFFIC))
+			server.handleMessage(ServerLog.Level.TRAFFIC,"From "+address+": "+command);
+		long begin=System.nanoTime();
+		//A pipelined command's response carries its tag
+		String tag=null;
+		if(sequenced&&command.startsWith("@")){
+			int space=command.indexOf(' ');
+			tag=(space<0)?command:command.substring(0,space);
+			command=(space<0)?"":command.substring(space+1);
+		}
+		//The codecs can only tag a response with a number, the command is
+		//answered untagged instead
+		final boolean badTag=tag!=null&&!isTag(tag);
+		setResponseTag(badTag?null:tag);
+		try{
+			if(badTag){
+				outputFailure("commands must be tagged with a sequence number");
+			}else if(isProtocol(command)){
+				negotiate(command.substring(8).trim());
+			}else if(command.startsWith("RESUME ")){
+				resume(command.substring(7).trim());
+			}else if(command.startsWith("ROOM ")){
+				joinRoom(command.substring(5).trim());
+			}else{
+				playing=true;
+				processCommand(command);
+			}
+		}finally{
+			setResponseTag(null);
+		}
+		server.getStats().commandProcessed(System.nanoTime()-begin);
+	}
+
+	/**
+	 * Lets the connection be used, called by start(). The player is only
+	 * added once the client's first command has chosen its room.
+	 */
+	protected final void open(){
+		closed.set(false);
+		server.getStats().connectionOpened();
+	}
+
+	/**
+	 * Adds the player and opens its session, if players are kept for
+	 * resuming
+	 */
+	@Override
+	protected void addPlayer(){
+		super.addPlayer();
+		if(server.getResumeGracePeriod()>0){
+			session=server.getSessions().open(room,playerID);
+			doOutputMessage("SESSION "+session);
+		}
+	}
+
+	/**
+	 * Chooses the room of the player of an earlier connection, which
+	 * enter() takes back. If there is none, the client starts in the default
+	 * room with a new player.
+	 * @param token - the session of the player
+	 */
+	private void resume(String token){
+		if(room!=null){
+			outputFailure("RESUME must be the first command");
+			return;
+		}
+		final SessionRegistry.Session resumed=server.getSessions().resume(token);
+		if(resumed==null){
+			outputFailure("no such session to resume");
+			joinDefault();
+			return;
+		}
+		//We take over the session's place in its room
+		session=token;
+		resuming=resumed;
+		room=resumed.room;
+	}
+
+	/**
+	 * Takes the player of a resumed session over, on its room's executor
+	 * @param taken
+	 * @return whether it has been taken over, if not the session is closed
+	 *         and the client has been sent FAIL
+	 */
+	private boolean takeOver(SessionRegistry.Session taken){
+		if(!resumePlayer(taken.playerID)){
+			//Its player has died meanwhile, we keep its place in the room
+			server.getSessions().close(session);
+			session=null;
+			taken.room.getGame().removeDetachedPlayer(taken.playerID);
+			return false;
+		}
+		//A client which has taken its player back cannot change rooms
+		playing=true;
+		doOutputMessage("SESSION "+session);
+		server.getStats().sessionResumed();
+		server.handleMessage(address+" has resumed player "+playerID);
+		return true;
+	}
+
+	/**
+	 * Chooses the room the client starts in, or moves it to another room
+	 * (with a new player) unless it has already started playing
+	 * @param name - the room's name, it is created if there is none
+	 */
+	private void joinRoom(String name){
+		if(playing){
+			outputFailure("ROOM must come before the commands of the game");
+			return;
+		}
+		if(!name.matches("[A-Za-z0-9_-]{1,32}")){
+			outputFailure("invalid room name");
+			return;
+		}
+		if(room!=null&&name.equals(room.getName())){
+			outputFailure("already in that room");
+			return;
+		}
+		final Room joined;
+		try{
+			joined=server.getRooms().join(name);
+		}catch(IOException e){
+			server.handleError(e);
+			outputFailure("the room could not be created");
+			return;
+		}
+		if(session!=null){
+			server.getSessions().close(session);
+			session=null;
+		}
+		final Room left=room;
+		if(entered){
+			removePlayer();
+			entered=false;
+		}
+		//The new player is added on the room's executor
+		room=joined;
+		if(left!=null)
+			server.getRooms().leave(left);
+		server.handleMessage(address+" has joined room \""+name+"\"");
+	}
+
+	/**
+	 * Takes the player out of the game once the connection has closed, on
+	 * the room's executor: a Batch of ours may still be running there, and
+	 * the thread closing the connection must not wait for the game's lock.
+	 */
+	protected final void leaveRoom(){
+		final Room left=executor();
+		left.execute(new Runnable(){
+			@Override public void run(){
+				//A command processed as the connection closed has chosen a
+				//room, or a ROOM has moved us on
+				if(room!=null&&room!=left){
+					leaveRoom();
+					return;
+				}
+				//There was no room to leave
+				if(room==null)return;
+				try{
+					leaveGame();
+				}catch(RuntimeException e){
+					server.handleError(e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Takes the player out of the game once the connection has closed. It is
+	 * only detached if it may be resumed, and removed once the grace period
+	 * is over. The session keeps our place in the room until then. Runs on
+	 * the room's executor, see leaveRoom.
+	 */
+	private void leaveGame(){
+		if(resuming!=null){
+			//Closed before the player was taken over, it waits for another connection
+			resuming=null;
+			server.getSessions().suspend(session);
+			return;
+		}
+		if(!entered||session==null){
+			if(entered)removePlayer();
+			entered=false;
+			server.getRooms().leave(room);
+			return;
+		}
+		detachPlayer();
+		server.getSessions().suspend(session);
+	}
+
+	/**
+	 * Pushes the view, if the client has asked for it, instead of sending
+	 * CHANGE. Called by the game, holding its lock.
+	 */
+	@Override
+	public void notifyChange(){
+		if(!push){
+			super.notifyChange();
+			return;
+		}
+		if(!pushScheduled.compareAndSet(false,true)){
+			server.getStats().changeCoalesced();
+			return;
+		}
+		room.execute(pushTask);
+	}
+
+	/**
+	 * Queues the message, it is written straight away unless a command of
+	 * this client is being processed
+	 */
+	@Override
+	protected final void doOutputMessage(String message){
+		if(closed.get())return;
+		if(server.isLogging(ServerLog.Level.TRAFFIC))
+			server.handleMessage(ServerLog.Level.TRAFFIC,"TO "+address+": "+message);
+		queue(message,null);
+	}
+
+	/**
+	 * Queues the shared encoding of the message, rather than encoding it
+	 * for this client alone
+	 */
+	@Override
+	protected final void doOutputShared(SharedMessage message){
+		if(closed.get())return;
+		queue(message.getText(),message);
+	}
+
+	/**
+	 * Encodes and queues a message, it is written straight away unless a
+	 * command of this client is being processed
+	 * @param message
+	 * @param shared - the message's shared encodings, null if it is ours alone
+	 */
+	private void queue(String message,SharedMessage shared){
+		boolean accepted;
+		synchronized(encodeLock){
+			//The codec may have been ended
+			if(closed.get())return;
+			ByteBuffer encoded=(shared==null)?codec.encode(message):shared.encodeFor(codec);
+			//CHANGE only tells the client to look, one queued is as good as many
+			accepted=outbound.add(encoded,
+					message.equals("CHANGE")&&codec.isSelfContained(),server.getStats());
+		}
+		if(!accepted){
+			evict();
+			return;
+		}
+		if(!processing)
+			requestFlush();
+	}
+
+	/**
+	 * Frees the codec, once the connection has been closed
+	 */
+	protected final void endCodec(){
+		synchronized(encodeLock){
+			codec.end();
+		}
+	}
+
+	/**
+	 * Agrees on the features to use with the client
+	 * @param features - the features requested, separated by spaces
+	 */
+	private void negotiate(String features){
+		if(commandSeen){
+			doOutputMessage("FAIL PROTOCOL must be the first command");
+			return;
+		}
+		String reply="PROTOCOL";
+		Codec agreed=codec;
+		boolean deflate=false;
+		for(String feature:features.split(" ")){
+			if(feature.equals("BINARY")){
+				agreed=new BinaryCodec();
+				reply+=" BINARY";
+			}else if(feature.equals("DEFLATE")&&server.isCompressionAllowed()){
+				deflate=true;
+				reply+=" DEFLATE";
+			}else if(feature.equals("DELTA")){
+				setLookDelta(new LookDelta(server.getStats()));
+				reply+=" DELTA";
+			}else if(feature.equals("SEQ")){
+				sequenced=true;
+				setSequenced(true);
+				reply+=" SEQ";
+			}else if(feature.equals("PUSH")){
+				push=true;
+				reply+=" PUSH";
+			}
+		}
+		if(deflate)
+			agreed=new DeflateCodec(agreed,server.getStats());
+		server.handleMessage(ServerLog.Level.TRAFFIC,"TO "+address+": "+reply);
+		synchronized(encodeLock){
+			//The reply is the last thing sent the old way
+			outbound.add(codec.encode(reply),false,server.getStats());
+			codec=agreed;
+		}
+	}
+
+	/**
+	 * Disconnects a client which does not keep up with its output, through
+	 * the usual close(). This is done by the dispatch pool, since we may
+	 * be in the middle of a game method, and close() leaves the game on the
+	 * room's executor.
+	 */
+	private void evict(){
+		if(!evicted.compareAndSet(false,true))return;
+		server.handleMessage(ServerLog.Level.WARNING,"Disconnecting "+address+": not reading its output ("+outbound.size()+" bytes queued)");
+		server.getStats().clientEvicted();
+		server.getDispatchPool().execute(new Runnable(){
+			@Override public void run(){
+				close();
+			}
+		});
+	}
+
+	/**
+	 * Stops reading from the client, until resumeReading(). Called by the
+	 * thread which reads, once processInput has handed over the commands.
+	 */
+	protected abstract void pauseReading();
+
+	/**
+	 * Reads from the client again, called by the room's executor
+	 */
+	protected abstract void resumeReading();
+
+	/**
+	 * Called when output has been queued outside of the client's own
+	 * commands, most often from within the game (holding its lock).
+	 * Must not block on the network.
+	 */
+	protected abstract void requestFlush();
+
+	/**
+	 * Writes (or arranges the writing of) everything in the outbound queue
+	 */
+	protected abstract void flushOutbound();
+
+	@Override public abstract void close();
+}
@@ -0,0 +1,128 @@
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses the output of another codec, and decompresses the input for
+ * it, negotiated with "PROTOCOL DEFLATE". Both directions are a single
+ * deflate stream which is sync flushed after every message, so that the
+ * other end can decode each message as soon as it arrives while the
+ * dictionary is kept between messages.
+ * 
+ * Since every message depends on the ones before it, none of them may be
+ * dropped once encoded, nor shared with another connection.
+ */
+public class DeflateCodec extends Codec {
+
+	//Most a client may make us inflate before a command is complete
+	private static final int MAX_INFLATED=1<<20;
+
+	private final Codec inner;
+	private final ConnectionStats stats;
+
+	private final Deflater deflater=new Deflater(Deflater.BEST_SPEED);
+	private final Inflater inflater=new Inflater();
+	private final byte[] chunk=new byte[4096];
+
+	//Inflated input which the inner codec has not decoded yet, ready to be read
+	private ByteBuffer inflated=ByteBuffer.allocate(4096);
+
+	//Set once the native memory of the deflater and the inflater has been freed
+	private boolean ended=false;
+
+	/**
+	 * @param newInner - the codec whose output is compressed
+	 * @param newStats - where the cost and the savings are recorded
+	 */
+	public DeflateCodec(Codec newInner,ConnectionStats newStats){
+		inner=newInner;
+		stats=newStats;
+		inflated.flip();
+	}
+
+	@Override public ByteBuffer encode(String message){
+		final ByteBuffer plain=inner.encode(message);
+		final long begin=System.nanoTime();
+		final int plainBytes=plain.remaining();
+		deflater.setInput(plain.array(),plain.arrayOffset()+plain.position(),plainBytes);
+		final ByteArrayOutputStream compressed=new ByteArrayOutputStream(plainBytes/2+16);
+		int length;
+		//A full chunk means there may be more to come
+		do{
+			length=deflater.deflate(chunk,0,chunk.length,Deflater.SYNC_FLUSH);
+			compressed.write(chunk,0,length);
+		}while(length==chunk.length);
+		stats.compressed(plainBytes,compressed.size(),System.nanoTime()-begin);
+		return ByteBuffer.wrap(compressed.toByteArray());
+	}
+
+	@Override public String decode(ByteBuffer in) throws IOException{
+		synchronized(inflater){
+			//The connection has closed meanwhile
+			if(ended)return null;
+			inflate(in);
+		}
+		return inner.decode(inflated);
+	}
+
+	/**
+	 * Inflates the received bytes, adding them to the inflated input
+	 * @param in
+	 * @throws IOException if the client does not send a valid stream
+	 */
+	private void inflate(ByteBuffer in) throws IOException{
+		if(in.hasRemaining()){
+			final byte[] input=new byte[in.remaining()];
+			in.get(input);
+			inflater.setInput(input);
+			try{
+				while(!inflater.needsInput()){
+					//The stream never ends, nothing may follow its end
+					if(inflater.finished())
+						throw new IOException("Input after the end of the deflate stream");
+					inflated.compact();
+					if(!inflated.hasRemaining()){
+						if(inflated.capacity()>=MAX_INFLATED)
+							throw new IOException("Too much input");
+						ByteBuffer larger=ByteBuffer.allocate(inflated.capacity()*2);
+						inflated.flip();
+						larger.put(inflated);
+						inflated=larger;
+					}
+					final int remaining=inflater.getRemaining();
+					int length=inflater.inflate(inflated.array(),inflated.position(),inflated.remaining());
+					inflated.position(inflated.position()+length);
+					inflated.flip();
+					if(length==0&&inflater.needsDictionary())
+						throw new IOException("Unexpected dictionary");
+					//There was room for output, so neither output nor input used up means no progress ever
+					if(length==0&&inflater.getRemaining()==remaining&&!inflater.finished())
+						throw new IOException("The deflate stream is stuck");
+				}
+			}catch(DataFormatException e){
+				throw new IOException(e);
+			}
+		}
+	}
+
+	/**
+	 * Frees the native memory of the deflater and the inflater
+	 */
+	@Override public void end(){
+		synchronized(inflater){
+			if(ended)return;
+			ended=true;
+			inflater.end();
+		}
+		deflater.end();
+	}
+
+	@Override public boolean isSelfContained(){
+		return false;
+	}
+}
@@ -4,18 +4,28 @@ import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.Image;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
-import java.io.File;
-import java.io.IOException;
+import java.awt.image.DataBufferInt;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
-import javax.imageio.ImageIO;
 import javax.swing.JPanel;
 
+import server.game.Location;
+
 /**
  * Copied over from the Client part of the project
  * with some modifications, such as that tiles are always squares
  * with a fixed size and the canvas changes size to hold them.
  * This GameCanvas should be used in a JScrollPane
+ * 
+ * Only the tiles within the area to be repainted are painted. The canvas
+ * can be zoomed out (see setTileSize), to watch large maps: at small tile
+ * sizes the map is painted from overview chunks, blocks of tiles painted
+ * once and kept until one of their tiles changes, and at the farthest zoom
+ * from an image with a pixel per tile.
  */
 public class GameCanvas extends JPanel {
 
@@ -25,12 +35,42 @@ public class GameCanvas extends JPanel {
 	private static final long serialVersionUID = 2L;
 
 	int tileSize=64;
+
+	/**
+	 * The tile sizes the canvas can be zoomed to, from the farthest
+	 */
+	public static final int[] ZOOM_LEVELS = { 1, 2, 4, 8, 16, 32, 64 };
+
+	// At this tile size and below the map is painted a chunk at a time
+	private static final int OVERVIEW_TILE_SIZE = 8;
+
+	// The number of tiles along a side of an overview chunk
+	private static final int CHUNK_TILES = 32;
+
+	// The most overview chunks kept, the least recently painted are dropped
+	private static final int MAX_CHUNKS = 256;
 	
 	private char[][] view = null;
 	private int rows = 0, cols = 0;
 
-	private BufferedImage wall, gold, player, sword, armor, potion, latern,
-			exit,floor;
+	// The tiles' images, scaled to the tile size
+	private SpriteAtlas sprites = null;
+
+	// The overview chunks painted at the current tile size, by chunk index
+	private final Map<Integer, BufferedImage> chunks = new LinkedHashMap<Integer, BufferedImage>(
+			16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(
+				Map.Entry<Integer, BufferedImage> eldest) {
+			return size() > MAX_CHUNKS;
+		}
+	};
+
+	// The map with a pixel per tile, and its pixels; null until needed
+	private BufferedImage pixelMap = null;
+	private int[] pixels = null;
 
 	public GameCanvas(){
 		this(64);
@@ -39,21 +79,6 @@ public class GameCanvas extends JPanel {
 	public GameCanvas(int newTileSize) {
 		super();
 		tileSize=newTileSize;
-		// Attempt to load the files containing the images
-		try {
-			wall = ImageIO.read(new File("img/wall.png"));
-			gold = ImageIO.read(new File("img/gold.png"));
-			player = ImageIO.read(new File("img/player.png"));
-			sword = ImageIO.read(new File("img/sword.png"));
-			armor = ImageIO.read(new File("img/armor.png"));
-			potion = ImageIO.read(new File("img/potion.png"));
-			latern = ImageIO.read(new File("img/latern.png"));
-			exit = ImageIO.read(new File("img/exit.png"));
-			floor = ImageIO.read(new File("img/floor.png"));
-		} catch (IOException e) {
-			// Do nothing, if they are missing someone has messed with the game
-			// files
-		}
 	}
 
 	/**
@@ -68,11 +93,50 @@ public class GameCanvas extends JPanel {
 		view=newView;
 		rows=newView.length;
 		cols=newView[0].length;
+		chunks.clear();
+		pixelMap = null;
+		pixels = null;
 		setPreferredSize(new Dimension(cols*tileSize,rows*tileSize));
 		revalidate();
 		repaint();
 	}
 
+	/**
+	 * Zooms the canvas, the canvas changes size to hold the tiles
+	 * 
+	 * @param newTileSize
+	 *            the size of a tile in pixels, see ZOOM_LEVELS
+	 */
+	public void setTileSize(int newTileSize) {
+		if (newTileSize == tileSize)
+			return;
+		tileSize = newTileSize;
+		// The chunks have been painted at the old size
+		chunks.clear();
+		setPreferredSize(new Dimension(cols * tileSize, rows * tileSize));
+		revalidate();
+		repaint();
+	}
+
+	/**
+	 * Repaints the tiles which have changed, the view having been updated in
+	 * place
+	 * 
+	 * @param changed
+	 *            the tiles which have changed
+	 */
+	public void updateTiles(List<Location> changed) {
+		final int chunkCols = (cols + CHUNK_TILES - 1) / CHUNK_TILES;
+		for (Location location : changed) {
+			final int row = location.getRow(), col = location.getCol();
+			if (pixels != null)
+				pixels[row * cols + col] = SpriteAtlas.getColor(view[row][col]);
+			chunks.remove((row / CHUNK_TILES) * chunkCols + col / CHUNK_TILES);
+			repaint(getTileXOffset(col), getTileYOffset(row), tileSize,
+					tileSize);
+		}
+	}
+
 	/**
 	 * Calculates the tile size with respect to the size of the canvas
 	 * 
@@ -111,7 +175,7 @@ public class GameCanvas extends JPanel {
 	 * @param col
 	 */
 	protected void paintFloor(Graphics g, int row, int col) {
-		g.drawImage(rescale(floor), col * getTileSize(), row * getTileSize(),
+		g.drawImage(sprite('.'), col * getTileSize(), row * getTileSize(),
 				null);
 	}
 
@@ -123,7 +187,7 @@ public class GameCanvas extends JPanel {
 	 * @param col
 	 */
 	protected void paintWall(Graphics g, int row, int col) {
-		g.drawImage(rescale(wall), col * getTileSize(), row * getTileSize(),
+		g.drawImage(sprite('#'), col * getTileSize(), row * getTileSize(),
 				null);
 	}
 
@@ -135,8 +199,7 @@ public class GameCanvas extends JPanel {
 	 * @param col
 	 */
 	protected void paintGold(Graphics g, int row, int col) {
-		paintFloor(g, row, col);
-		g.drawImage(rescale(gold), col * getTileSize(), row * getTileSize(),
+		g.drawImage(sprite('G'), col * getTileSize(), row * getTileSize(),
 				null);
 	}
 
@@ -148,8 +211,7 @@ public class GameCanvas extends JPanel {
 	 * @param col
 	 */
 	protected void paintPlayer(Graphics g, int row, int col) {
-		paintFloor(g, row, col);
-		g.drawImage(rescale(player), col * getTileSize(),
+		g.drawImage(sprite('P'), col * getTileSize(),
 				row * getTileSize(), null);
 	}
 
@@ -161,9 +223,7 @@ public class GameCanvas extends JPanel {
 	 * @param col
 	 */
 	protected void paintSword(Graphics g, int row, int col) {
-
-		paintFloor(g, row, col);
-		g.drawImage(rescale(sword), col * getTileSize(), row * getTileSize(),
+		g.drawImage(sprite('S'), col * getTileSize(), row * getTileSize(),
 				null);
 	}
 
@@ -175,8 +235,7 @@ public class GameCanvas extends JPanel {
 	 * @param col
 	 */
 	protected void paintArmor(Graphics g, int row, int col) {
-		paintFloor(g, row, col);
-		g.drawImage(rescale(armor), col * getTileSize(), row * getTileSize(),
+		g.drawImage(sprite('A'), col * getTileSize(), row * getTileSize(),
 				null);
 	}
 
@@ -188,8 +247,7 @@ public class GameCanvas extends JPanel {
 	 * @param col
 	 */
 	protected void paintHealthPotion(Graphics g, int row, int col) {
-		paintFloor(g, row, col);
-		g.drawImage(rescale(potion), col * getTileSize(),
+		g.drawImage(sprite('H'), col * getTileSize(),
 				row * getTileSize(), null);
 	}
 
@@ -201,7 +259,7 @@ public class GameCanvas extends JPanel {
 	 * @param col
 	 */
 	protected void paintExit(Graphics g, int row, int col) {
-		g.drawImage(rescale(exit), col * getTileSize(), row * getTileSize(),
+		g.drawImage(sprite('E'), col * getTileSize(), row * getTileSize(),
 				null);
 	}
 
@@ -213,8 +271,7 @@ public class GameCanvas extends JPanel {
 	 * @param col
 	 */
 	protected void paintLatern(Graphics g, int row, int col) {
-		paintFloor(g, row, col);
-		g.drawImage(rescale(latern), col * getTileSize(), row * getTileSize(), null);
+		g.drawImage(sprite('L'), col * getTileSize(), row * getTileSize(), null);
 	}
 
 	/**
@@ -261,27 +318,120 @@ public class GameCanvas extends JPanel {
 	}
 
 	/**
-	 * Paints the entire component
+	 * Paints the component, only the tiles within the area to be repainted;
+	 * from overview chunks or the pixel per tile map when zoomed out
 	 */
 	@Override
 	public void paintComponent(Graphics g) {
 		super.paintComponent(g);
+		Rectangle clip = g.getClipBounds();
+		if (clip == null)
+			clip = new Rectangle(0, 0, getWidth(), getHeight());
 		g.setColor(new Color(0));
-		g.fillRect(0, 0, getWidth(), getHeight());
-		for (int row = 0; row < rows; row++)
-			for (int col = 0; col < cols; col++)
+		g.fillRect(clip.x, clip.y, clip.width, clip.height);
+		if (view == null)
+			return;
+		if (tileSize == 1) {
+			g.drawImage(getPixelMap(), 0, 0, null);
+			return;
+		}
+		if (tileSize <= OVERVIEW_TILE_SIZE) {
+			paintChunks(g, clip);
+			return;
+		}
+		int firstRow = Math.max(0, clip.y / tileSize);
+		int lastRow = Math.min(rows - 1, (clip.y + clip.height - 1) / tileSize);
+		int firstCol = Math.max(0, clip.x / tileSize);
+		int lastCol = Math.min(cols - 1, (clip.x + clip.width - 1) / tileSize);
+		for (int row = firstRow; row <= lastRow; row++)
+			for (int col = firstCol; col <= lastCol; col++)
+				paintTile(g, row, col);
+	}
+
+	/**
+	 * Paints the overview chunks within the clip, painting those which have
+	 * not been painted yet (or have changed since) first
+	 * 
+	 * @param g
+	 * @param clip
+	 *            the area to be repainted
+	 */
+	private void paintChunks(Graphics g, Rectangle clip) {
+		final int chunkSize = CHUNK_TILES * tileSize;
+		final int chunkCols = (cols + CHUNK_TILES - 1) / CHUNK_TILES;
+		final int chunkRows = (rows + CHUNK_TILES - 1) / CHUNK_TILES;
+		int firstRow = Math.max(0, clip.y / chunkSize);
+		int lastRow = Math.min(chunkRows - 1, (clip.y + clip.height - 1)
+				/ chunkSize);
+		int firstCol = Math.max(0, clip.x / chunkSize);
+		int lastCol = Math.min(chunkCols - 1, (clip.x + clip.width - 1)
+				/ chunkSize);
+		for (int row = firstRow; row <= lastRow; row++)
+			for (int col = firstCol; col <= lastCol; col++) {
+				final int index = row * chunkCols + col;
+				BufferedImage chunk = chunks.get(index);
+				if (chunk == null) {
+					chunk = paintChunk(row, col);
+					chunks.put(index, chunk);
+				}
+				g.drawImage(chunk, col * chunkSize, row * chunkSize, null);
+			}
+	}
+
+	/**
+	 * Paints the tiles of an overview chunk into an image of its own
+	 * 
+	 * @param chunkRow
+	 * @param chunkCol
+	 * @return the chunk's image
+	 */
+	private BufferedImage paintChunk(int chunkRow, int chunkCol) {
+		final int firstRow = chunkRow * CHUNK_TILES;
+		final int firstCol = chunkCol * CHUNK_TILES;
+		final int chunkRows = Math.min(CHUNK_TILES, rows - firstRow);
+		final int chunkCols = Math.min(CHUNK_TILES, cols - firstCol);
+		BufferedImage chunk = new BufferedImage(chunkCols * tileSize,
+				chunkRows * tileSize, BufferedImage.TYPE_INT_RGB);
+		Graphics g = chunk.createGraphics();
+		g.translate(-firstCol * tileSize, -firstRow * tileSize);
+		for (int row = firstRow; row < firstRow + chunkRows; row++)
+			for (int col = firstCol; col < firstCol + chunkCols; col++)
 				paintTile(g, row, col);
+		g.dispose();
+		return chunk;
+	}
+
+	/**
+	 * Returns the map with a pixel per tile, creating it from the view if it
+	 * has not been created yet. It is kept up to date by updateTiles, its
+	 * pixels being written to directly.
+	 * 
+	 * @return the map's image
+	 */
+	private BufferedImage getPixelMap() {
+		if (pixelMap == null) {
+			pixelMap = new BufferedImage(cols, rows,
+					BufferedImage.TYPE_INT_RGB);
+			pixels = ((DataBufferInt) pixelMap.getRaster().getDataBuffer())
+					.getData();
+			for (int row = 0; row < rows; row++)
+				for (int col = 0; col < cols; col++)
+					pixels[row * cols + col] = SpriteAtlas
+							.getColor(view[row][col]);
+		}
+		return pixelMap;
 	}
 
 	/**
-	 * Rescales the image according to tile size
+	 * Returns the image of a tile, scaled to the tile size. The images are
+	 * only scaled again once the tile size has changed.
 	 * 
-	 * @param i - image to be resized
-	 * @return - resized image
+	 * @param tile - the character of the tile on the map
+	 * @return - the scaled image, null if the tile has none
 	 */
-	private Image rescale(Image i) {
-		Image rescaled = i.getScaledInstance(getTileSize(), getTileSize(),
-				Image.SCALE_DEFAULT);
-		return rescaled;
+	private Image sprite(char tile) {
+		if (sprites == null || sprites.getWidth() != tileSize)
+			sprites = SpriteAtlas.forSize(tileSize, tileSize);
+		return sprites.get(tile);
 	}
 }
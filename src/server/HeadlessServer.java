@@ -0,0 +1,183 @@
+package server;
+
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the server without a window, for machines without a display. The
+ * server's log is written to the standard output as structured lines,
+ * errors to the standard error. Nothing here (nor in ServerLogic and the
+ * game) uses AWT or Swing.
+ *
+ * The map, the port and the server's tuning are taken from the command
+ * line, see main.
+ */
+public class HeadlessServer implements ServerUI {
+
+	private static final String USAGE=
+		"Usage: HeadlessServer [options]\n"
+		+"  --map FILE               map file (default: maps/Default Map.txt)\n"
+		+"  --port N                 port to listen on (default: 60000)\n"
+		+"  --mode MODE              THREAD_PER_CLIENT, NIO or VIRTUAL_THREADS (default: NIO)\n"
+		+"  --io-loops N             selector loops in NIO mode\n"
+		+"  --backlog N              connections waiting to be accepted\n"
+		+"  --max-connections N      connections served at once\n"
+		+"  --max-per-address N      connections served at once per address\n"
+		+"  --high-water-mark BYTES  output queued for a client before it is slow\n"
+		+"  --slow-timeout MS        how long a client may stay slow\n"
+		+"  --no-compression         refuse DEFLATE\n"
+		+"  --resume-grace MS        how long a dropped player is kept\n"
+		+"  --reset-delay MS         how long a finished game is shown\n"
+		+"  --log-level LEVEL        TRAFFIC, INFO or WARNING (default: INFO)\n"
+		+"  --log-file FILE          also append the log to a file\n"
+		+"  --stats SECONDS          log the connection stats periodically\n"
+		+"  --help                   show this and exit";
+
+	//The standard output, flushed once per batch of the log rather than per line
+	private final PrintStream out=new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)),false);
+
+	/**
+	 * Writes a batch of the log to the standard output. Only called by the
+	 * log's thread.
+	 */
+	@Override public void handleMessage(String messages){
+		out.println(messages);
+		out.flush();
+	}
+
+	/**
+	 * Errors are logged by the server as well, the standard error gets
+	 * their stack traces
+	 */
+	@Override public void handleError(Throwable error){
+		error.printStackTrace();
+	}
+
+	/**
+	 * Starts a server and keeps it listening until the process is stopped
+	 * @param args - see USAGE
+	 */
+	static public void main(String[] args){
+		//The map is needed first, to create the server the other options tune
+		String map="maps/Default Map.txt";
+		for(int i=0;i<args.length;i++){
+			if(args[i].equals("--help")){
+				System.out.println(USAGE);
+				return;
+			}
+			if(args[i].equals("--map")&&i+1<args.length)
+				map=args[i+1];
+		}
+		final HeadlessServer ui=new HeadlessServer();
+		final ServerLogic server;
+		try{
+			server=new ServerLogic(map,ui,ConnectionMode.NIO);
+		}catch(Exception e){
+			System.err.println("Cannot load the map "+map+": "+e.getMessage());
+			System.exit(1);
+			return;
+		}
+		server.getLog().setStructured(true);
+		server.getLog().setLevel(ServerLog.Level.INFO);
+		long statsPeriod=0;
+		try{
+			for(int i=0;i<args.length;i++){
+				String option=args[i],value=null;
+				if(!option.equals("--no-compression")){
+					if(i+1>=args.length)
+						usage(option+" needs a value");
+					value=args[++i];
+				}
+				switch(option){
+				case "--map":
+					break;
+				case "--port":
+					server.setPort(Integer.parseInt(value));
+					break;
+				case "--mode":
+					server.setConnectionMode(ConnectionMode.valueOf(value.toUpperCase()));
+					break;
+				case "--io-loops":
+					server.setIoLoops(Integer.parseInt(value));
+					break;
+				case "--backlog":
+					server.setBacklog(Integer.parseInt(value));
+					break;
+				case "--max-connections":
+					server.getAdmission().setMaxConnections(Integer.parseInt(value));
+					break;
+				case "--max-per-address":
+					server.getAdmission().setMaxConnectionsPerAddress(Integer.parseInt(value));
+					break;
+				case "--high-water-mark":
+					server.setOutboundHighWaterMark(Long.parseLong(value));
+					break;
+				case "--slow-timeout":
+					server.setSlowConsumerTimeout(Long.parseLong(value));
+					break;
+				case "--no-compression":
+					server.setCompressionAllowed(false);
+					break;
+				case "--resume-grace":
+					server.setResumeGracePeriod(Long.parseLong(value));
+					break;
+				case "--reset-delay":
+					server.setMatchResetDelay(Long.parseLong(value));
+					break;
+				case "--log-level":
+					server.getLog().setLevel(ServerLog.Level.valueOf(value.toUpperCase()));
+					break;
+				case "--log-file":
+					server.getLog().setFile(value);
+					break;
+				case "--stats":
+					statsPeriod=Long.parseLong(value);
+					break;
+				default:
+					usage("Unknown option "+option);
+				}
+			}
+		}catch(IllegalArgumentException|UnsupportedOperationException e){
+			//Bad numbers, levels and modes
+			usage(e.getMessage());
+		}catch(IOException e){
+			System.err.println("Cannot open the log file: "+e.getMessage());
+			System.exit(1);
+		}
+
+		server.startListening();
+		if(!server.isListening()){
+			System.err.println("Cannot listen on port "+server.getPort());
+			System.exit(1);
+		}
+		server.handleMessage("Listening on "+server.getIP()+":"+server.getPort()+", "
+				+(System.currentTimeMillis()-ManagementFactory.getRuntimeMXBean().getStartTime())
+				+" ms after start-up");
+
+		if(statsPeriod>0)
+			server.getScheduler().scheduleAtFixedRate(new Runnable(){
+				@Override public void run(){
+					server.handleMessage("Stats: "+server.getStats());
+				}
+			},statsPeriod,statsPeriod,TimeUnit.SECONDS);
+
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable(){
+			@Override public void run(){
+				server.stopListening();
+				server.handleMessage("Stats: "+server.getStats());
+				server.getLog().awaitDrained(1000);
+			}
+		}));
+	}
+
+	private static void usage(String problem){
+		System.err.println(problem);
+		System.err.println(USAGE);
+		System.exit(2);
+	}
+}
@@ -0,0 +1,208 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * Measures what many idle clients cost the server, and how quickly it
+ * answers them all at once. The clients connect one after the other and
+ * send a LOOK (the server only adds a player once it has a command), then
+ * every client sends a LOOK at the same time, a number of rounds over.
+ * The clients share a single selector, so they need neither a thread nor
+ * much heap of their own.
+ *
+ * Printed at the end: how long connecting took, the LOOKs answered per
+ * second with their median and 99th percentile latency, the peak number
+ * of threads, and the heap still in use (after a full GC) per connected
+ * client, measured while all of them are connected and idle. The used
+ * heap without a GC mostly shows how lazy the collector is, not what the
+ * connections keep.
+ *
+ * The clients run in the same JVM as the server, so every client takes two
+ * of its open files (see ulimit -n).
+ *
+ * Usage: LoadBenchmark [clients (default 1000)] [rounds (default 5)]
+ *        [mode (default THREAD_PER_CLIENT)]
+ */
+public class LoadBenchmark implements ServerUI {
+
+	//The map's width and height, in tiles, enough for 10k players
+	private static final int MAP_SIZE=200;
+
+	private static final byte[] LOOK="LOOK\n".getBytes();
+
+	/**
+	 * One of the clients, reading a line at a time
+	 */
+	private static class Client {
+
+		private final SocketChannel channel;
+		private final StringBuilder line=new StringBuilder();
+		//When the LOOK being waited for was sent
+		private long sent;
+
+		Client(SocketChannel newChannel){
+			channel=newChannel;
+		}
+	}
+
+	@Override public void handleError(Throwable error){
+	}
+
+	@Override public void handleMessage(String messages){
+	}
+
+	static public void main(String[] args) throws Exception{
+		final int clients=args.length>0?Integer.parseInt(args[0]):1000;
+		final int rounds=args.length>1?Integer.parseInt(args[1]):5;
+		final ConnectionMode mode=args.length>2?ConnectionMode.valueOf(args[2]):ConnectionMode.THREAD_PER_CLIENT;
+
+		final MemoryMXBean memory=ManagementFactory.getMemoryMXBean();
+		final ServerLogic server=new ServerLogic(writeMap().getPath(),new LoadBenchmark(),mode);
+		server.getLog().setLevel(ServerLog.Level.WARNING);
+		server.setBacklog(clients);
+		server.getAdmission().setMaxConnections(clients);
+		server.getAdmission().setMaxConnectionsPerAddress(clients);
+		//Closed clients should not be kept for a RESUME
+		server.setResumeGracePeriod(0);
+		final int port;
+		try(ServerSocket free=new ServerSocket(0)){
+			port=free.getLocalPort();
+		}
+		server.setPort(port);
+		server.startListening();
+		Thread.sleep(1000);
+		final long baseHeap=liveHeap(memory);
+
+		final Selector selector=Selector.open();
+		final Client[] all=new Client[clients];
+		final long[] latencies=new long[clients*rounds];
+		long start=System.nanoTime();
+		int ready=0;
+		for(int i=0;i<clients;i++){
+			final SocketChannel channel=SocketChannel.open(new InetSocketAddress("localhost",port));
+			channel.configureBlocking(false);
+			all[i]=new Client(channel);
+			channel.register(selector,SelectionKey.OP_READ,all[i]);
+			send(all[i]);
+			//Answer what has arrived, so that the server's buffers do not fill up
+			ready+=receive(selector,0,null,0);
+		}
+		while(ready<clients)
+			ready+=receive(selector,100,null,0);
+		final long connectNanos=System.nanoTime()-start;
+
+		Thread.sleep(1000);
+		final long connectedHeap=liveHeap(memory);
+
+		int answered=0;
+		start=System.nanoTime();
+		for(int round=0;round<rounds;round++){
+			for(Client client:all)
+				send(client);
+			for(int done=0;done<clients;)
+				done+=receive(selector,100,latencies,answered+done);
+			answered+=clients;
+		}
+		final long lookNanos=System.nanoTime()-start;
+		Arrays.sort(latencies);
+
+		System.out.println(clients+" clients, "+rounds+" LOOK rounds, "+mode);
+		System.out.printf("connecting took %.1f s, %.0f LOOKs/s, p50 %.1f ms, p99 %.1f ms%n",
+				connectNanos/1e9,answered/(lookNanos/1e9),
+				latencies[answered/2]/1e6,latencies[(int)(answered*0.99)]/1e6);
+		System.out.printf("%d threads at most, %.1f MB live heap for the clients (%.1f KB each), mean command %d us%n",
+				ManagementFactory.getThreadMXBean().getPeakThreadCount(),
+				(connectedHeap-baseHeap)/1048576.0,(connectedHeap-baseHeap)/1024.0/clients,
+				server.getStats().getMeanCommandNanos()/1000);
+		System.exit(0);
+	}
+
+	/**
+	 * @return the heap still in use after a full GC
+	 */
+	private static long liveHeap(MemoryMXBean memory){
+		memory.gc();
+		return memory.getHeapMemoryUsage().getUsed();
+	}
+
+	private static void send(Client client) throws IOException{
+		client.sent=System.nanoTime();
+		client.channel.write(ByteBuffer.wrap(LOOK));
+	}
+
+	/**
+	 * Reads what the server has sent
+	 * @param millis how long to wait for it, 0 for not at all
+	 * @param latencies where to note how long each LOOK took, or null
+	 * @param next the index of the next latency
+	 * @return the number of LOOKs answered
+	 */
+	private static int receive(Selector selector,long millis,long[] latencies,int next) throws IOException{
+		if((millis==0?selector.selectNow():selector.select(millis))==0)return 0;
+		final ByteBuffer buffer=ByteBuffer.allocate(65536);
+		int answered=0;
+		for(Iterator<SelectionKey> keys=selector.selectedKeys().iterator();keys.hasNext();){
+			final SelectionKey key=keys.next();
+			keys.remove();
+			final Client client=(Client)key.attachment();
+			buffer.clear();
+			if(client.channel.read(buffer)<0){
+				key.cancel();
+				continue;
+			}
+			buffer.flip();
+			while(buffer.hasRemaining()){
+				final char character=(char)buffer.get();
+				if(character!='\n'){
+					client.line.append(character);
+					continue;
+				}
+				if(client.line.toString().equals("LOOKREPLY")){
+					if(latencies!=null)
+						latencies[next+answered]=System.nanoTime()-client.sent;
+					answered++;
+				}
+				client.line.setLength(0);
+			}
+		}
+		return answered;
+	}
+
+	/**
+	 * Writes a map large enough for every client, the default one only has
+	 * room for a few players
+	 * @return the map's file, deleted once the benchmark is over
+	 */
+	private static File writeMap() throws IOException{
+		final File file=File.createTempFile("LoadBenchmark",".txt");
+		file.deleteOnExit();
+		try(PrintWriter out=new PrintWriter(file)){
+			out.println("name Load benchmark");
+			//Nobody picks the gold up, the game goes on
+			out.println("win 1");
+			for(int row=0;row<MAP_SIZE;row++){
+				final char[] tiles=new char[MAP_SIZE];
+				Arrays.fill(tiles,'.');
+				if(row==0||row==MAP_SIZE-1)
+					Arrays.fill(tiles,'#');
+				tiles[0]=tiles[MAP_SIZE-1]='#';
+				if(row==1)
+					tiles[1]='G';
+				out.println(tiles);
+			}
+		}
+		return file;
+	}
+}
@@ -0,0 +1,165 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import server.game.GameLogic;
+
+/**
+ * Measures how long the game's lock is held while some clients are slow
+ * to read. Fast clients SHOUT (which the game sends to everyone) and LOOK
+ * as quickly as they are answered; slow clients read 1 KB now and then,
+ * or not at all, so that their TCP windows fill up. A server which writes
+ * to a client while holding the lock stops answering everyone once that
+ * happens.
+ *
+ * Every 2 seconds the LOOKs answered so far and the lock's holds are
+ * printed, at the end the mean and longest hold (see
+ * GameLogic.getLockHolds). A hold which has not ended is not counted, a
+ * stalled server shows as holds which stop growing.
+ *
+ * Usage: LockBenchmark [fast clients (default 20)] [slow clients (default 4)]
+ *        [seconds (default 20)] [ms between the reads of a slow client, 0
+ *        for never (default 0)] [mode (default THREAD_PER_CLIENT)]
+ */
+public class LockBenchmark implements ServerUI {
+
+	//What a fast client shouts, the longer the sooner the slow ones fill up
+	private static final int SHOUT_LENGTH=4000;
+
+	//The map's width and height, in tiles
+	private static final int MAP_SIZE=100;
+
+	@Override public void handleError(Throwable error){
+	}
+
+	@Override public void handleMessage(String messages){
+	}
+
+	static public void main(String[] args) throws Exception{
+		final int fast=args.length>0?Integer.parseInt(args[0]):20;
+		final int slow=args.length>1?Integer.parseInt(args[1]):4;
+		final int seconds=args.length>2?Integer.parseInt(args[2]):20;
+		final long interval=args.length>3?Long.parseLong(args[3]):0;
+		final ConnectionMode mode=args.length>4?ConnectionMode.valueOf(args[4]):ConnectionMode.THREAD_PER_CLIENT;
+
+		final ServerLogic server=new ServerLogic(writeMap().getPath(),new LockBenchmark(),mode);
+		server.getLog().setLevel(ServerLog.Level.WARNING);
+		final int port;
+		try(ServerSocket free=new ServerSocket(0)){
+			port=free.getLocalPort();
+		}
+		server.setPort(port);
+		server.startListening();
+		Thread.sleep(1000);
+
+		final AtomicBoolean stop=new AtomicBoolean(false);
+		final AtomicLong looks=new AtomicLong();
+		final char[] text=new char[SHOUT_LENGTH];
+		Arrays.fill(text,'x');
+		final byte[] command=("SHOUT "+new String(text)+"\nLOOK\n").getBytes();
+
+		for(int i=0;i<slow;i++){
+			final Socket socket=new Socket();
+			//A small window fills up sooner
+			socket.setReceiveBufferSize(4096);
+			socket.connect(new InetSocketAddress("localhost",port));
+			//The player is only added once the client has sent a command
+			socket.getOutputStream().write("LOOK\n".getBytes());
+			start(new Runnable(){
+				@Override public void run(){
+					try{
+						final InputStream in=socket.getInputStream();
+						final byte[] buffer=new byte[1024];
+						while(!stop.get()){
+							if(interval>0&&in.read(buffer)<0)break;
+							Thread.sleep(interval>0?interval:100);
+						}
+					}catch(IOException|InterruptedException e){
+						//The benchmark is over
+					}
+				}
+			});
+		}
+		for(int i=0;i<fast;i++){
+			final Socket socket=new Socket("localhost",port);
+			start(new Runnable(){
+				@Override public void run(){
+					try{
+						final OutputStream out=socket.getOutputStream();
+						final BufferedReader in=new BufferedReader(new InputStreamReader(socket.getInputStream()));
+						while(!stop.get()){
+							out.write(command);
+							out.flush();
+							String line;
+							while((line=in.readLine())!=null&&!line.equals("LOOKREPLY"));
+							if(line==null)break;
+							looks.incrementAndGet();
+						}
+					}catch(IOException e){
+						//The benchmark is over
+					}
+				}
+			});
+		}
+
+		final GameLogic game=server.getGame();
+		final StringBuilder progress=new StringBuilder();
+		for(int elapsed=0;elapsed<seconds;elapsed+=2){
+			Thread.sleep(2000);
+			progress.append(' ').append(looks.get()).append('/').append(game.getLockHolds());
+		}
+		stop.set(true);
+
+		System.out.println(fast+" fast and "+slow+" slow clients ("+(interval>0?"reading 1 KB every "+interval+" ms":"never reading")+"), "+mode+", "+seconds+" s");
+		System.out.println("LOOKs answered/lock holds every 2 s:"+progress);
+		System.out.printf("%d LOOKs answered (%.0f/s), lock held %d times, mean %.1f us, max %.1f ms%n",
+				looks.get(),looks.get()/(double)seconds,game.getLockHolds(),
+				game.getMeanLockHoldNanos()/1e3,game.getMaxLockHoldNanos()/1e6);
+		System.exit(0);
+	}
+
+	/**
+	 * Writes a map large enough for every client, the default one only has
+	 * room for a few players
+	 * @return the map's file, deleted once the benchmark is over
+	 */
+	private static File writeMap() throws IOException{
+		final File file=File.createTempFile("LockBenchmark",".txt");
+		file.deleteOnExit();
+		try(PrintWriter out=new PrintWriter(file)){
+			out.println("name Lock benchmark");
+			//Nobody picks the gold up, the game goes on
+			out.println("win 1");
+			for(int row=0;row<MAP_SIZE;row++){
+				final char[] tiles=new char[MAP_SIZE];
+				Arrays.fill(tiles,'.');
+				if(row==0||row==MAP_SIZE-1)
+					Arrays.fill(tiles,'#');
+				tiles[0]=tiles[MAP_SIZE-1]='#';
+				if(row==1)
+					tiles[1]='G';
+				out.println(tiles);
+			}
+		}
+		return file;
+	}
+
+	private static void start(Runnable client){
+		final Thread thread=new Thread(client);
+		//A client stuck in a write must not keep the benchmark alive
+		thread.setDaemon(true);
+		thread.start();
+	}
+}
@@ -0,0 +1,81 @@
+package server;
+
+import server.game.PlayerView;
+
+/**
+ * Remembers the last view sent to a client, and describes the next one
+ * relative to it: how far the view has moved, followed by the tiles which
+ * differ from the moved old view.
+ * 
+ * "LOOKDELTA dCol dRow" is followed by a "col row tile" triple for every
+ * changed tile. The client shifts its view by (dCol,dRow), so that a tile
+ * ends up where the tile dCol columns to the right and dRow rows below it
+ * used to be, and then patches the listed tiles. Tiles shifted in from
+ * outside the old view are always listed.
+ * 
+ * A full LOOKREPLY is sent instead for the first view, whenever the size
+ * of the view changes and whenever the delta would not be smaller.
+ */
+class LookDelta {
+
+	//A changed tile costs about as much as this many tiles of a full reply
+	private static final int COST_PER_CHANGE=6;
+
+	private static final String LINE_SEPARATOR=System.getProperty("line.separator");
+
+	private final ConnectionStats stats;
+
+	//The view the client currently has
+	private PlayerView last=null;
+
+	LookDelta(ConnectionStats newStats){
+		stats=newStats;
+	}
+
+	/**
+	 * Describes a new view and remembers it
+	 * @param view
+	 * @return a LOOKDELTA, or a LOOKREPLY if that is cheaper
+	 */
+	String next(PlayerView view){
+		final PlayerView previous=last;
+		last=view;
+
+		final int size=view.getSize();
+		if(previous==null||previous.getSize()!=size)
+			return full(view);
+		final int dCol=view.getCentre().getCol()-previous.getCentre().getCol();
+		final int dRow=view.getCentre().getRow()-previous.getCentre().getRow();
+		if(Math.abs(dCol)>=size||Math.abs(dRow)>=size)
+			return full(view);
+
+		final StringBuilder delta=new StringBuilder("LOOKDELTA ").append(dCol).append(' ').append(dRow);
+		final int budget=size*size/COST_PER_CHANGE;
+		int changes=0;
+		for(int row=0;row<size;row++){
+			for(int col=0;col<size;col++){
+				final int oldRow=row+dRow,oldCol=col+dCol;
+				final char tile=view.getTile(row,col);
+				if(oldRow>=0&&oldRow<size&&oldCol>=0&&oldCol<size&&previous.getTile(oldRow,oldCol)==tile)
+					continue;
+				if(++changes>budget)
+					return full(view);
+				delta.append(' ').append(col).append(' ').append(row).append(' ').append(tile);
+			}
+		}
+		stats.lookSent(true,changes,size*size);
+		return delta.toString();
+	}
+
+	/**
+	 * Forgets the last view, the next one is sent in full
+	 */
+	void forget(){
+		last=null;
+	}
+
+	private String full(PlayerView view){
+		stats.lookSent(false,view.getSize()*view.getSize(),view.getSize()*view.getSize());
+		return "LOOKREPLY"+LINE_SEPARATOR+view;
+	}
+}
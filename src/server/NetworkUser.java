@@ -1,47 +1,91 @@
 package server;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
-import server.game.GameLogic;
 /**
  * A class for reading/writing to a user over a network
  */
-public class NetworkUser extends CommandLineUser implements AutoCloseable{
+public class NetworkUser extends ConnectionUser{
 	
-	//The thread listening for input from a client
-	private Thread clientThread=new Thread(this);
+	//The thread listening for input from a client, created by the server on start
+	private Thread clientThread=null;
 	
-	AtomicBoolean closed=new AtomicBoolean(true);
+	//Guards close(); a lock rather than a monitor so that virtual threads
+	//closing their sockets do not pin their carrier threads
+	private final ReentrantLock closeLock=new ReentrantLock();
+	
+	//Set while the room is too far behind with our commands, the reader
+	//waits for it to catch up
+	private final ReentrantLock pauseLock=new ReentrantLock();
+	private final Condition resumed=pauseLock.newCondition();
+	private boolean paused=false;
+	
+	//Only one thread writes to the socket at a time
+	private final ReentrantLock writeLock=new ReentrantLock();
+	//Gathers a batch of messages so that it is written at once
+	private final ArrayList<ByteBuffer> batch=new ArrayList<ByteBuffer>();
+	private ByteArrayOutputStream batchBytes=new ByteArrayOutputStream();
+	private final byte[] chunk=new byte[4096];
+	
+	//A batch larger than this is not kept for the next one, most clients
+	//are idle most of the time and need no more
+	private static final int KEPT_BATCH_MESSAGES=64;
+	private static final int KEPT_BATCH_BYTES=4096;
+	
+	//Writes output caused by others, so that they never wait for our socket
+	private final SerialExecutor dispatcher;
+	private final AtomicBoolean flushScheduled=new AtomicBoolean(false);
+	private final Runnable flushTask=new Runnable(){
+		@Override public void run(){
+			flushScheduled.set(false);
+			flushOutbound();
+		}
+	};
 	
 	//The socket responsible for the IO
 	private Socket client=null;
 	
-	private BufferedReader netIn=null;
-	private BufferedWriter netOut=null;
+	private InputStream netIn=null;
+	private OutputStream netOut=null;
 	
-	//The server who initiated this client
-	private ServerLogic server;
-	
-	public NetworkUser(GameLogic game, ServerLogic newServer,Socket newClient){
-		super(game); 
-		server=newServer;
+	/**
+	 * @param newServer
+	 * @param newClient
+	 */
+	public NetworkUser(ServerLogic newServer,Socket newClient){
+		super(newServer,newClient.getInetAddress());
 		client=newClient;
+		dispatcher=new SerialExecutor(server.getDispatchPool());
 	}
 	
 	/**
 	 * Closes the socket and the IO streams
 	 */
-	@Override synchronized public void close(){
-		//Do not close twice
-		if(closed.get())return;
-		closed.set(true);
-		
+	@Override public void close(){
+		closeLock.lock();
+		try{
+			//Do not close twice
+			if(closed.get())return;
+			closed.set(true);
+			closeConnection();
+		}finally{
+			closeLock.unlock();
+		}
+	}
+	
+	/**
+	 * Does the actual closing, called once by close()
+	 */
+	private void closeConnection(){
 		try{
 			//Inform the server administrator that we're closing a connection
 			server.handleMessage(
@@ -51,15 +95,16 @@ public class NetworkUser extends CommandLineUser implements AutoCloseable{
 			netOut.close();
 			netIn.close();
 			client.close();
-			//Remove the player from GameLogic
-			removePlayer();
-			//Update server view
-			server.updateMapView();
+			//Remove (or detach) the player from GameLogic, on the room's executor
+			leaveRoom();
 			//Stop the thread
 			clientThread.interrupt();
 		} catch (IOException e) {
 			//Inform the administrator of an error
 			server.handleError(e);
+		}finally{
+			endCodec();
+			server.clientClosed(inetAddress);
 		}
 	}
 	
@@ -68,10 +113,10 @@ public class NetworkUser extends CommandLineUser implements AutoCloseable{
 	 * @throws IOException
 	 */
 	public void start()throws IOException{
-		netIn=new BufferedReader(new InputStreamReader(client.getInputStream()));
-		netOut=new BufferedWriter(new OutputStreamWriter(client.getOutputStream()));
-		addPlayer();
-		closed.set(false);
+		netIn=client.getInputStream();
+		netOut=client.getOutputStream();
+		clientThread=server.newThread(this);
+		open();
 		clientThread.start();
 	}
 	
@@ -81,46 +126,116 @@ public class NetworkUser extends CommandLineUser implements AutoCloseable{
 	@Override
 	public void run() {
 		try {
+			final ByteBuffer inBuffer=ByteBuffer.allocate(4096);
 			while (true) {
 			
-				// Try to grab a command from the network
-				final String command = netIn.readLine();
+				// Try to grab whatever the network has for us
+				final int read = netIn.read(inBuffer.array());
 
-				// Test for EOF (ctrl-D)
-				if (command==null||command.isEmpty()) {
+				// Test for EOF
+				if (read<0) {
 					break;
 				}
 				
-				server.handleMessage("From "+client.getInetAddress().getHostAddress()+": "+command);
+				inBuffer.position(0).limit(read);
+				processInput(inBuffer);
 				
-				processCommand(command);
+				// Leave the rest in the socket until the room catches up
+				pauseLock.lock();
+				try {
+					while (paused)
+						resumed.await();
+				} finally {
+					pauseLock.unlock();
+				}
 			}
 			
+		} catch (final InterruptedException e) {
+			// Closed while waiting for the room
 		} catch (final RuntimeException e) {
 			server.handleError(e);
 		} catch (final IOException e) {
-			// Die if something goes wrong.
-			server.handleError(e);
+			// Die if something goes wrong, unless we have closed the socket ourselves
+			if(!closed.get())
+				server.handleError(e);
 		}finally{
 			close();
 		}
 	}
 	
 	/**
-	 * Responsible for sending server output to the client 
+	 * The reader waits once it has handed its commands over
 	 */
 	@Override
-	protected void doOutputMessage(String message) {
+	protected void pauseReading() {
+		pauseLock.lock();
+		try {
+			paused = true;
+		} finally {
+			pauseLock.unlock();
+		}
+	}
+	
+	@Override
+	protected void resumeReading() {
+		pauseLock.lock();
+		try {
+			paused = false;
+			resumed.signal();
+		} finally {
+			pauseLock.unlock();
+		}
+	}
+	
+	/**
+	 * Hands the writing to this user's dispatcher. A write already waiting
+	 * to run will pick up the new output as well.
+	 */
+	@Override
+	protected void requestFlush() {
+		if(flushScheduled.compareAndSet(false,true))
+			dispatcher.execute(flushTask);
+	}
+	
+	/**
+	 * Writes everything queued for the client with a single write
+	 */
+	@Override
+	protected void flushOutbound() {
+		writeLock.lock();
 		try{
-			server.updateMapView();
-			server.handleMessage("TO "+client.getInetAddress().getHostAddress()+": "+message);
-			netOut.write(message);
-			netOut.newLine();
+			int messages=outbound.drainTo(batch);
+			//Nothing to write, or nobody to write it to
+			if(messages==0||closed.get())return;
+			for(ByteBuffer message:batch){
+				if(message.hasArray()){
+					batchBytes.write(message.array(),message.arrayOffset()+message.position(),message.remaining());
+					continue;
+				}
+				//A shared broadcast, which is read-only
+				while(message.hasRemaining()){
+					int length=Math.min(chunk.length,message.remaining());
+					message.get(chunk,0,length);
+					batchBytes.write(chunk,0,length);
+				}
+			}
+			int bytes=batchBytes.size();
+			batchBytes.writeTo(netOut);
 			netOut.flush();
+			server.getStats().flushed(messages,bytes);
 		}catch(IOException e){
 			server.handleError(e);
 			close();
-		}catch(NullPointerException e){
+		}finally{
+			final boolean large=batch.size()>KEPT_BATCH_MESSAGES;
+			batch.clear();
+			if(large)
+				batch.trimToSize();
+			if(batchBytes.size()>KEPT_BATCH_BYTES)
+				batchBytes=new ByteArrayOutputStream();
+			else
+				batchBytes.reset();
+			writeLock.unlock();
 		}
 	}
 }
@@ -0,0 +1,158 @@
+package server;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Serves clients through a small fixed set of selector loops instead of
+ * a thread per client. Accepted channels are spread over the loops
+ * in a round robin manner.
+ */
+public class NioConnectionEngine {
+
+	//The server whose clients are served
+	private final ServerLogic server;
+
+	//The IO loops, started lazily when the first client arrives
+	private final IoLoop[] loops;
+	private int nextLoop=0;
+
+	/**
+	 * @param newServer - the server whose clients will be served
+	 * @param loopCount - how many selector loops to use
+	 */
+	public NioConnectionEngine(ServerLogic newServer,int loopCount){
+		if(loopCount<1)
+			throw new IllegalArgumentException("At least one IO loop is needed");
+		server=newServer;
+		loops=new IoLoop[loopCount];
+	}
+
+	/**
+	 * Hands a newly accepted channel to one of the IO loops
+	 * @param channel
+	 * @throws IOException
+	 */
+	synchronized public void register(SocketChannel channel) throws IOException{
+		if(loops[nextLoop]==null)
+			loops[nextLoop]=new IoLoop(nextLoop);
+		IoLoop loop=loops[nextLoop];
+		nextLoop=(nextLoop+1)%loops.length;
+
+		channel.configureBlocking(false);
+		loop.register(new NioUser(server,channel,loop));
+	}
+
+	/**
+	 * A single selector thread serving many clients
+	 */
+	class IoLoop implements Runnable{
+
+		private final Selector selector;
+		private final Thread thread;
+
+		//Users waiting to be registered with the selector
+		private final Queue<NioUser> registrations=new ConcurrentLinkedQueue<NioUser>();
+		//Users with output waiting to be written
+		private final Queue<NioUser> writes=new ConcurrentLinkedQueue<NioUser>();
+		//Users to read from again, once their rooms have caught up
+		private final Queue<NioUser> reads=new ConcurrentLinkedQueue<NioUser>();
+
+		IoLoop(int index) throws IOException{
+			selector=Selector.open();
+			thread=new Thread(this,"NIO loop "+index);
+			//The loops must not keep the server alive on their own
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		void register(NioUser user){
+			registrations.add(user);
+			selector.wakeup();
+		}
+
+		/**
+		 * Asks the loop to write the user's queued output
+		 * @param user
+		 */
+		void requestWrite(NioUser user){
+			//Already waiting for the loop
+			if(!user.writeScheduled.compareAndSet(false,true))return;
+			writes.add(user);
+			//The loop writes everything before selecting again
+			if(Thread.currentThread()!=thread)
+				selector.wakeup();
+		}
+
+		/**
+		 * Asks the loop to read from the user again
+		 * @param user
+		 */
+		void requestRead(NioUser user){
+			reads.add(user);
+			if(Thread.currentThread()!=thread)
+				selector.wakeup();
+		}
+
+		@Override public void run(){
+			try{
+				while(true){
+					selector.select();
+
+					NioUser user;
+					while((user=registrations.poll())!=null){
+						try{
+							user.start(user.getChannel().register(selector,SelectionKey.OP_READ,user));
+						}catch(IOException|RuntimeException e){
+							//The user has no room or player before its first command
+							server.handleError(e);
+							refuse(user);
+						}
+					}
+
+					Iterator<SelectionKey> keys=selector.selectedKeys().iterator();
+					while(keys.hasNext()){
+						SelectionKey key=keys.next();
+						keys.remove();
+						user=(NioUser)key.attachment();
+						if(key.isValid()&&key.isReadable())
+							user.read();
+						if(key.isValid()&&key.isWritable())
+							user.write();
+					}
+
+					while((user=reads.poll())!=null)
+						user.readAgain();
+
+					while((user=writes.poll())!=null){
+						user.writeScheduled.set(false);
+						if(!user.closed.get())
+							user.write();
+					}
+				}
+			}catch(IOException|ClosedSelectorException e){
+				server.handleError(e);
+			}
+		}
+
+		/**
+		 * Lets go of the connection of a user which could not be started
+		 * @param user
+		 */
+		private void refuse(NioUser user){
+			SocketChannel channel=user.getChannel();
+			server.getAdmission().release(channel.socket().getInetAddress());
+			try{
+				channel.close();
+			}catch(IOException e){
+				//Nothing we can do
+			}
+		}
+	}
+}
@@ -0,0 +1,189 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A user connected over a non-blocking SocketChannel.
+ * It has no thread of its own - it is served by one of the
+ * NioConnectionEngine's IO loops, which hands it whatever it reads.
+ */
+public class NioUser extends ConnectionUser{
+
+	//The channel responsible for the IO
+	private final SocketChannel channel;
+
+	//The IO loop serving this user and the key it was registered with
+	private final NioConnectionEngine.IoLoop loop;
+	private SelectionKey key=null;
+
+	//Bytes read from the network which have not been decoded yet
+	private final ByteBuffer inBuffer=ByteBuffer.allocate(4096);
+
+	//Messages taken from the outbound queue, but not completely written yet
+	private final ArrayDeque<ByteBuffer> unwritten=new ArrayDeque<ByteBuffer>();
+	//Set while this user is waiting for its IO loop to write
+	final AtomicBoolean writeScheduled=new AtomicBoolean(false);
+
+	NioUser(ServerLogic newServer,SocketChannel newChannel,NioConnectionEngine.IoLoop newLoop){
+		super(newServer,newChannel.socket().getInetAddress());
+		channel=newChannel;
+		loop=newLoop;
+	}
+
+	/**
+	 * Start the client, called by the IO loop once the channel is registered
+	 * @param newKey - the key the channel has been registered with
+	 */
+	void start(SelectionKey newKey){
+		key=newKey;
+		open();
+	}
+
+	/**
+	 * @return the channel this user is connected through
+	 */
+	SocketChannel getChannel(){
+		return channel;
+	}
+
+	/**
+	 * Closes the channel and removes the player
+	 */
+	@Override synchronized public void close(){
+		//Do not close twice
+		if(closed.get())return;
+		closed.set(true);
+
+		try{
+			//Inform the server administrator that we're closing a connection
+			server.handleMessage("Closing connection to "+address);
+			if(key!=null)key.cancel();
+			channel.close();
+			//Remove (or detach) the player from GameLogic, on the room's executor
+			leaveRoom();
+		}catch(IOException e){
+			//Inform the administrator of an error
+			server.handleError(e);
+		}finally{
+			endCodec();
+			server.clientClosed(inetAddress);
+		}
+	}
+
+	/**
+	 * Reads whatever is available on the channel, called by the IO loop
+	 * when the channel is readable
+	 */
+	void read(){
+		try{
+			inBuffer.clear();
+			if(channel.read(inBuffer)<0){
+				//End of stream
+				close();
+				return;
+			}
+			inBuffer.flip();
+			processInput(inBuffer);
+		}catch(IOException|RuntimeException e){
+			server.handleError(e);
+			close();
+		}
+	}
+
+	/**
+	 * Hands every complete command in the input buffer to the room
+	 */
+	@Override
+	public void run(){
+		try{
+			processInput(inBuffer);
+		}catch(IOException e){
+			server.handleError(e);
+			close();
+		}
+	}
+
+	/**
+	 * Stops selecting the channel for reading, whatever the client sends
+	 * meanwhile stays in the socket. Called by the IO loop, from read().
+	 */
+	@Override
+	protected void pauseReading(){
+		try{
+			key.interestOps(key.interestOps()&~SelectionKey.OP_READ);
+		}catch(CancelledKeyException e){
+			//Closed meanwhile
+		}
+	}
+
+	/**
+	 * The IO loop selects the channel for reading again
+	 */
+	@Override
+	protected void resumeReading(){
+		loop.requestRead(this);
+	}
+
+	/**
+	 * Selects the channel for reading again, called by the IO loop
+	 */
+	void readAgain(){
+		try{
+			key.interestOps(key.interestOps()|SelectionKey.OP_READ);
+		}catch(CancelledKeyException e){
+			//Closed meanwhile
+		}
+	}
+
+	/**
+	 * Writes as much of the queued output as the channel accepts with a
+	 * gathering write, called by the IO loop
+	 */
+	void write(){
+		try{
+			//Only take more once the last batch is out, so that the backlog
+			//of a slow client stays in the (bounded) outbound queue
+			int messages=unwritten.isEmpty()?outbound.drainTo(unwritten):0;
+			if(messages>0){
+				long bytes=0;
+				for(ByteBuffer message:unwritten)
+					bytes+=message.remaining();
+				server.getStats().flushed(messages,bytes);
+			}
+			if(!unwritten.isEmpty())
+				channel.write(unwritten.toArray(new ByteBuffer[unwritten.size()]));
+			while(!unwritten.isEmpty()&&!unwritten.peek().hasRemaining())
+				unwritten.poll();
+			//If the socket buffer is full, wait until the channel is writable
+			if(unwritten.isEmpty())
+				key.interestOps(key.interestOps()&~SelectionKey.OP_WRITE);
+			else
+				key.interestOps(key.interestOps()|SelectionKey.OP_WRITE);
+		}catch(IOException|RuntimeException e){
+			server.handleError(e);
+			close();
+		}
+	}
+
+	/**
+	 * The IO loop does the writing
+	 */
+	@Override
+	protected void flushOutbound(){
+		loop.requestWrite(this);
+	}
+
+	/**
+	 * Handing the output to the IO loop never blocks
+	 */
+	@Override
+	protected void requestFlush(){
+		flushOutbound();
+	}
+}
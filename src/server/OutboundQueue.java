@@ -0,0 +1,134 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Encoded messages waiting to be written to a connection. Anything may
+ * add to it, only the connection's writer drains it, in batches.
+ * 
+ * A collapsible message is dropped while the same one is still waiting
+ * at the end of the queue. Every queued message costs far more heap than
+ * its few bytes, and a game with many players may tell each of them about
+ * every change.
+ *
+ * The queue is bounded: once it holds more than the high-water mark,
+ * redundant messages are dropped, and a client which stays above the mark
+ * for too long, or lets the queue grow past four times the mark, should be
+ * disconnected.
+ */
+public class OutboundQueue {
+
+	/**
+	 * A queued message
+	 */
+	private static class Entry{
+		final ByteBuffer data;
+		//Another collapsible message says the same, so this one may be dropped
+		final boolean collapsible;
+		//Set once the writer has taken it
+		volatile boolean taken=false;
+
+		Entry(ByteBuffer newData,boolean newCollapsible){
+			data=newData;
+			collapsible=newCollapsible;
+		}
+	}
+
+	private final Queue<Entry> messages=new ConcurrentLinkedQueue<Entry>();
+	//The message added last, only the adding thread sets it
+	private volatile Entry last=null;
+
+	//Size of the queued messages, and how many of them are collapsible
+	private final AtomicLong queuedBytes=new AtomicLong();
+	private final AtomicInteger queuedCollapsible=new AtomicInteger();
+
+	//Limits, in bytes and milliseconds
+	private final long highWaterMark;
+	private final long timeAllowedAbove;
+
+	//When the queue last went above the high-water mark, 0 if it is below
+	private volatile long aboveSince=0;
+
+	/**
+	 * @param newHighWaterMark - size in bytes above which the client is considered slow
+	 * @param newTimeAllowedAbove - how long (in ms) a client may stay above the mark
+	 */
+	public OutboundQueue(long newHighWaterMark,long newTimeAllowedAbove){
+		highWaterMark=newHighWaterMark;
+		timeAllowedAbove=newTimeAllowedAbove;
+	}
+
+	/**
+	 * Queues an encoded message, unless the queue is above the high-water mark
+	 * and the message is redundant
+	 * @param message - ready to be written, it will not be copied
+	 * @param collapsible - true if an identical message still queued would do
+	 * @param stats - where dropped and collapsed messages are counted
+	 * @return false if the client should be disconnected for not keeping up
+	 */
+	public boolean add(ByteBuffer message,boolean collapsible,ConnectionStats stats){
+		long size=queuedBytes.get();
+		if(size>highWaterMark){
+			long now=System.currentTimeMillis();
+			if(aboveSince==0)
+				aboveSince=now;
+			if(size>4*highWaterMark||now-aboveSince>timeAllowedAbove)
+				return false;
+			//The client has not even read the previous one yet
+			if(collapsible&&queuedCollapsible.get()>0){
+				stats.messageDropped();
+				return true;
+			}
+		}
+		//Nothing was added after the same message, which is still to be written
+		final Entry previous=last;
+		if(collapsible&&previous!=null&&previous.collapsible&&!previous.taken){
+			stats.changeCoalesced();
+			return true;
+		}
+		if(collapsible)
+			queuedCollapsible.incrementAndGet();
+		queuedBytes.addAndGet(message.remaining());
+		final Entry entry=new Entry(message,collapsible);
+		last=entry;
+		messages.add(entry);
+		return true;
+	}
+
+	/**
+	 * Moves every queued message into the batch, in order
+	 * @param batch
+	 * @return the number of messages moved
+	 */
+	public int drainTo(Collection<ByteBuffer> batch){
+		int count=0;
+		Entry entry;
+		while((entry=messages.poll())!=null){
+			entry.taken=true;
+			if(entry.collapsible)
+				queuedCollapsible.decrementAndGet();
+			queuedBytes.addAndGet(-entry.data.remaining());
+			batch.add(entry.data);
+			count++;
+		}
+		if(queuedBytes.get()<=highWaterMark)
+			aboveSince=0;
+		return count;
+	}
+
+	public boolean isEmpty(){
+		return messages.isEmpty();
+	}
+
+	/**
+	 * @return the size of the queued messages in bytes
+	 */
+	public long size(){
+		return queuedBytes.get();
+	}
+}
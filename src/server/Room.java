@@ -0,0 +1,56 @@
+package server;
+
+import java.util.concurrent.Executor;
+
+import server.game.GameLogic;
+
+/**
+ * A match: a game of its own, and the executor its work runs on. The
+ * commands of the room's clients, the views pushed to them and the removal
+ * of players who did not come back all run on this executor one at a time,
+ * so the clients of a room do not compete for its game's lock and rooms
+ * run side by side on the server's room pool.
+ *
+ * Rooms are handed out by RoomRegistry, which counts their members (the
+ * connections in them, and the players kept for resuming), forgets them
+ * once they are empty and starts a new match once their game is over.
+ */
+public class Room implements Executor {
+
+	private final String name;
+	private final GameLogic game;
+	private final SerialExecutor executor;
+
+	//Connections in the room, and players kept for resuming; guarded by the registry
+	int members=0;
+
+	//Set while a new match is due, once the game is over; guarded by the registry
+	boolean resetScheduled=false;
+
+	Room(String newName,GameLogic newGame,Executor pool){
+		name=newName;
+		game=newGame;
+		executor=new SerialExecutor(pool);
+	}
+
+	/**
+	 * @return the name clients join the room by, "" for the default room
+	 */
+	public String getName(){
+		return name;
+	}
+
+	/**
+	 * @return the room's game
+	 */
+	public GameLogic getGame(){
+		return game;
+	}
+
+	/**
+	 * Runs a task after the room's earlier tasks, never alongside them
+	 */
+	@Override public void execute(Runnable task){
+		executor.execute(task);
+	}
+}
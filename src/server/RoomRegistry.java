@@ -0,0 +1,172 @@
+package server;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import server.game.GameLogic;
+
+/**
+ * The rooms of a server, by name. A room is created when the first client
+ * asks for it and forgotten once it is empty. A room whose game is over
+ * is kept: after the server's reset delay its game is reset, and its
+ * members play a new match without having to reconnect.
+ *
+ * The default room ("") is where clients start. It is kept while empty,
+ * so that the server always has a game to show.
+ */
+public class RoomRegistry {
+
+	public static final String DEFAULT="";
+
+	private final ServerLogic server;
+	private final String mapFilePath;
+
+	private final HashMap<String,Room> rooms=new HashMap<String,Room>();
+
+	//The newest default room, kept even after it has been forgotten
+	private Room defaultRoom=null;
+
+	//How many rooms have been created and forgotten so far
+	private long created=0;
+	private long removed=0;
+
+	RoomRegistry(ServerLogic newServer,String newMapFilePath){
+		server=newServer;
+		mapFilePath=newMapFilePath;
+	}
+
+	/**
+	 * Joins a room, creating it if there is none of that name. Every join
+	 * must be followed by a leave.
+	 * @param name
+	 * @return the room
+	 * @throws IOException if the room's game could not be created
+	 */
+	Room join(String name) throws IOException{
+		synchronized(this){
+			Room room=rooms.get(name);
+			if(room!=null){
+				room.members++;
+				return room;
+			}
+		}
+		//The map is parsed without holding the registry, other rooms are
+		//joined and left meanwhile
+		final GameLogic game=createGame();
+		synchronized(this){
+			Room room=rooms.get(name);
+			//Someone else has created it meanwhile, our game is thrown away
+			if(room==null)
+				room=install(name,game);
+			room.members++;
+			return room;
+		}
+	}
+
+	/**
+	 * Leaves a room, the room is forgotten once it is empty
+	 * @param room
+	 */
+	synchronized void leave(Room room){
+		room.members--;
+		if(room.members<=0&&!room.getName().equals(DEFAULT))
+			forget(room);
+	}
+
+	/**
+	 * Starts a new match in a room whose game is over, once the server's
+	 * reset delay has passed. The game is reset on the room's executor.
+	 * @param room
+	 */
+	synchronized void finished(final Room room){
+		if(room.resetScheduled)return;
+		room.resetScheduled=true;
+		final Runnable reset=new Runnable(){
+			@Override public void run(){
+				synchronized(RoomRegistry.this){
+					room.resetScheduled=false;
+				}
+				final long start=System.nanoTime();
+				if(!room.getGame().reset())return;
+				server.getStats().matchReset(System.nanoTime()-start);
+				server.handleMessage("A new match has started"+(room.getName().equals(DEFAULT)?"":" in room \""+room.getName()+"\""));
+			}
+		};
+		server.getScheduler().schedule(new Runnable(){
+			@Override public void run(){
+				room.execute(reset);
+			}
+		},server.getMatchResetDelay(),TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Opens a room for a game which has already been created
+	 * @param name
+	 * @param game
+	 * @return the room, not joined yet
+	 */
+	synchronized Room open(String name,GameLogic game){
+		Room room=rooms.get(name);
+		if(room!=null)
+			forget(room);
+		return install(name,game);
+	}
+
+	/**
+	 * @return the newest default room (not joined), null if there has been
+	 *         none yet
+	 */
+	synchronized Room getDefault(){
+		return defaultRoom;
+	}
+
+	/**
+	 * @return the number of rooms which can be joined
+	 */
+	synchronized public int getRoomCount(){
+		return rooms.size();
+	}
+
+	/**
+	 * @return the number of rooms created so far
+	 */
+	synchronized public long getRoomsCreated(){
+		return created;
+	}
+
+	/**
+	 * @return the number of rooms forgotten so far
+	 */
+	synchronized public long getRoomsRemoved(){
+		return removed;
+	}
+
+	private GameLogic createGame() throws IOException{
+		try{
+			return new GameLogic(mapFilePath);
+		}catch(ParseException e){
+			throw new IOException("The map could not be parsed",e);
+		}
+	}
+
+	private Room install(String name,GameLogic game){
+		game.setBroadcaster(new ConnectionBroadcaster(server));
+		Room room=new Room(name,game,server.getRoomPool());
+		rooms.put(name,room);
+		if(name.equals(DEFAULT))
+			defaultRoom=room;
+		created++;
+		if(!name.equals(DEFAULT))
+			server.handleMessage("Room \""+name+"\" has been created ("+rooms.size()+" rooms)");
+		return room;
+	}
+
+	private void forget(Room room){
+		if(rooms.get(room.getName())!=room)return;
+		rooms.remove(room.getName());
+		removed++;
+		server.handleMessage("Room \""+room.getName()+"\" has been closed ("+rooms.size()+" rooms)");
+	}
+}
@@ -0,0 +1,61 @@
+package server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs its tasks one at a time, in the order they were submitted, on the
+ * threads of a shared pool. Many SerialExecutors can share one pool and
+ * each of them occupies at most one of its threads at a time.
+ */
+public class SerialExecutor implements Executor {
+
+	private final Executor pool;
+
+	private final Queue<Runnable> tasks=new ConcurrentLinkedQueue<Runnable>();
+
+	//Set while a pool thread is running our tasks
+	private final AtomicBoolean running=new AtomicBoolean(false);
+
+	//Runs tasks until there are none left
+	private final Runnable drainer=new Runnable(){
+		@Override public void run(){
+			try{
+				Runnable task;
+				while((task=tasks.poll())!=null){
+					try{
+						task.run();
+					}catch(RuntimeException e){
+						//One failing task must not stop the ones after it
+						Thread thread=Thread.currentThread();
+						thread.getUncaughtExceptionHandler().uncaughtException(thread,e);
+					}
+				}
+			}finally{
+				running.set(false);
+				//A task may have arrived after the last poll
+				if(!tasks.isEmpty())
+					schedule();
+			}
+		}
+	};
+
+	/**
+	 * @param newPool - the pool whose threads will run the tasks
+	 */
+	public SerialExecutor(Executor newPool){
+		pool=newPool;
+	}
+
+	@Override public void execute(Runnable task){
+		tasks.add(task);
+		schedule();
+	}
+
+	private void schedule(){
+		if(running.compareAndSet(false,true))
+			pool.execute(drainer);
+	}
+}
@@ -15,8 +15,12 @@ public class Server extends JFrame {
 	private static final long serialVersionUID = 1L;
 
 	public Server(String map,int size){
+		this(map,size,ConnectionMode.THREAD_PER_CLIENT);
+	}
+	
+	public Server(String map,int size,ConnectionMode mode){
 		//Add a server panel
-		add(new ServerPanel(map,size));
+		add(new ServerPanel(map,size,mode));
 		
 		this.setTitle("Dungeon of Doom (Server)");
 		
@@ -40,7 +44,7 @@ public class Server extends JFrame {
 	
 	/**
 	 * Create a new window
-	 * @param args
+	 * @param args - [map file] [size] [THREAD_PER_CLIENT|NIO]
 	 */
 	static public void main(String[] args){
 		final String[] fargs=args;
@@ -53,8 +57,12 @@ public class Server extends JFrame {
 				case 1:
 					new Server(fargs[0],250);
 					break;
-				default:
+				case 2:
 					new Server(fargs[0],Integer.parseInt(fargs[1]));
+					break;
+				default:
+					new Server(fargs[0],Integer.parseInt(fargs[1]),
+							ConnectionMode.valueOf(fargs[2].toUpperCase()));
 				}
 				
 			}
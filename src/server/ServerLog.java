@@ -0,0 +1,300 @@
+package server;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.time.Instant;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The server's log. Logging a message only queues it, it never waits: the
+ * messages are handed to the UI (and written to the log file, if there is
+ * one) in batches by a thread of the log's own. The queue is bounded and so
+ * are the messages, so a log which cannot keep up drops messages (and counts
+ * them) rather than slowing the server down or filling its memory.
+ *
+ * Messages below the log's level are dropped straight away; callers logging
+ * something costly to build should check isLogged first.
+ *
+ * The messages are handed over as they are, one per line, or as structured
+ * lines (time=... level=... msg="...") which tools can parse.
+ */
+public class ServerLog {
+
+	/**
+	 * How much a message matters, from the least
+	 */
+	public enum Level{
+		//Every line sent to or received from a client
+		TRAFFIC,
+		//Connections, rooms, sessions and matches coming and going
+		INFO,
+		//Clients refused or disconnected, errors
+		WARNING
+	}
+
+	//How many messages may wait for the log's thread, and how many are handed over at once
+	private static final int CAPACITY=4096;
+	private static final int BATCH=256;
+
+	//Longer messages are cut short
+	private static final int MAX_MESSAGE_LENGTH=1024;
+
+	private final ServerUI ui;
+
+	/**
+	 * A message waiting for the log's thread
+	 */
+	private static class Entry{
+		final long time;
+		final Level level;
+		final String text;
+
+		Entry(Level newLevel,String newText){
+			time=System.currentTimeMillis();
+			level=newLevel;
+			text=newText;
+		}
+	}
+
+	//Messages waiting for the log's thread, and how many there are
+	private final ConcurrentLinkedQueue<Entry> pending=new ConcurrentLinkedQueue<Entry>();
+	private final AtomicInteger pendingCount=new AtomicInteger();
+
+	//Messages handed over, and messages dropped because the log fell behind
+	private final AtomicLong logged=new AtomicLong();
+	private final AtomicLong dropped=new AtomicLong();
+
+	private volatile Level level=Level.TRAFFIC;
+
+	//Whether the lines are structured, rather than the bare messages
+	private volatile boolean structured=false;
+
+	//Where the messages are written besides the UI, null for nowhere
+	private volatile Writer file=null;
+
+	private volatile Thread thread=null;
+
+	//Set while the log's thread is handing a batch over
+	private volatile boolean delivering=false;
+
+	ServerLog(ServerUI newUI){
+		ui=newUI;
+	}
+
+	/**
+	 * @param messageLevel
+	 * @return whether messages of that level are logged
+	 */
+	public boolean isLogged(Level messageLevel){
+		return messageLevel.compareTo(level)>=0;
+	}
+
+	/**
+	 * Queues a message, or drops it if the log is behind or the message is
+	 * below the log's level
+	 * @param messageLevel
+	 * @param message
+	 */
+	public void log(Level messageLevel,String message){
+		if(!isLogged(messageLevel))return;
+		//Make sure there is room for it first
+		if(pendingCount.incrementAndGet()>CAPACITY){
+			pendingCount.decrementAndGet();
+			dropped.incrementAndGet();
+			return;
+		}
+		if(message.length()>MAX_MESSAGE_LENGTH)
+			message=message.substring(0,MAX_MESSAGE_LENGTH)+"...";
+		pending.add(new Entry(messageLevel,message));
+		Thread consumer=thread;
+		if(consumer==null)
+			consumer=start();
+		LockSupport.unpark(consumer);
+	}
+
+	/**
+	 * Sets the least a message must matter to be logged
+	 * @param newLevel
+	 */
+	public void setLevel(Level newLevel){
+		level=newLevel;
+	}
+
+	public Level getLevel(){
+		return level;
+	}
+
+	/**
+	 * Sets whether the messages are handed over with their time and level,
+	 * as time=... level=... msg="..." (with quotes, backslashes and line
+	 * breaks in the message escaped), or as they are
+	 * @param isStructured
+	 */
+	public void setStructured(boolean isStructured){
+		structured=isStructured;
+	}
+
+	/**
+	 * Writes the log to a file as well as to the UI, from now on. The file is
+	 * appended to.
+	 * @param path - the file, null to stop writing to a file
+	 * @throws IOException if the file cannot be opened
+	 */
+	public void setFile(String path) throws IOException{
+		Writer old=file;
+		file=(path==null)?null:new BufferedWriter(new FileWriter(path,true));
+		if(old!=null){
+			//The log's thread may still be writing a batch to it
+			synchronized(old){
+				old.close();
+			}
+		}
+	}
+
+	/**
+	 * @return the number of messages handed to the UI so far
+	 */
+	public long getLoggedMessages(){
+		return logged.get();
+	}
+
+	/**
+	 * @return the number of messages dropped because the log fell behind
+	 */
+	public long getDroppedMessages(){
+		return dropped.get();
+	}
+
+	/**
+	 * @return the number of messages waiting to be handed to the UI
+	 */
+	public int getPendingMessages(){
+		return pendingCount.get();
+	}
+
+	/**
+	 * Waits for the messages logged so far to be handed over, e.g. before
+	 * the server exits
+	 * @param millis - how long to wait at most
+	 */
+	public void awaitDrained(long millis){
+		long deadline=System.nanoTime()+TimeUnit.MILLISECONDS.toNanos(millis);
+		while((pendingCount.get()>0||delivering)&&System.nanoTime()<deadline){
+			try{
+				Thread.sleep(1);
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Starts the log's thread, unless it has been started already
+	 * @return the thread
+	 */
+	private synchronized Thread start(){
+		if(thread==null){
+			Thread consumer=new Thread(new Runnable(){
+				@Override public void run(){
+					drain();
+				}
+			},"Server log");
+			//The log must not keep the server alive on its own
+			consumer.setDaemon(true);
+			consumer.start();
+			thread=consumer;
+		}
+		return thread;
+	}
+
+	/**
+	 * The log thread's loop: hands the queued messages over a batch at a
+	 * time, and waits for more once there are none
+	 */
+	private void drain(){
+		final StringBuilder batch=new StringBuilder();
+		while(true){
+			int count=0;
+			Entry entry;
+			delivering=true;
+			while(count<BATCH&&(entry=pending.poll())!=null){
+				pendingCount.decrementAndGet();
+				if(count>0)batch.append('\n');
+				if(structured)
+					format(entry,batch);
+				else
+					batch.append(entry.text);
+				count++;
+			}
+			if(count==0){
+				delivering=false;
+				LockSupport.park(this);
+				continue;
+			}
+			final String text=batch.toString();
+			batch.setLength(0);
+			logged.addAndGet(count);
+			try{
+				ui.handleMessage(text);
+			}catch(RuntimeException e){
+				//A faulty UI must not stop the log
+				e.printStackTrace();
+			}
+			write(text);
+		}
+	}
+
+	/**
+	 * Appends an entry as a structured line
+	 * @param entry
+	 * @param line
+	 */
+	private static void format(Entry entry,StringBuilder line){
+		line.append("time=").append(Instant.ofEpochMilli(entry.time))
+			.append(" level=").append(entry.level)
+			.append(" msg=\"");
+		for(int i=0;i<entry.text.length();i++){
+			char c=entry.text.charAt(i);
+			switch(c){
+			case '"':
+			case '\\':
+				line.append('\\').append(c);
+				break;
+			case '\n':
+				line.append("\\n");
+				break;
+			case '\r':
+				line.append("\\r");
+				break;
+			default:
+				line.append(c);
+			}
+		}
+		line.append('"');
+	}
+
+	/**
+	 * Writes a batch to the log file, if there is one
+	 * @param text
+	 */
+	private void write(String text){
+		final Writer to=file;
+		if(to==null)return;
+		synchronized(to){
+			try{
+				to.write(text);
+				to.write(System.getProperty("line.separator"));
+				to.flush();
+			}catch(IOException e){
+				//Closed meanwhile, or the disk is full; the UI still has it
+			}
+		}
+	}
+}
@@ -1,15 +1,26 @@
 package server;
 
+import java.io.Closeable;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
-import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.text.ParseException;
 import java.util.Collections;
 import java.util.Enumeration;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 
 import server.game.GameLogic;
 
@@ -19,23 +30,76 @@ import server.game.GameLogic;
  */
 public class ServerLogic implements Runnable{
 	
-	//Server socket and its port
+	//Server socket (or channel in NIO mode), its port and backlog
 	private ServerSocket listener=null;
+	private ServerSocketChannel listenerChannel=null;
 	private int port=60000;
+	private int backlog=50;
 	
 	//The thread responsible for listening for clients and accepting them
 	private Thread listenerThread=new Thread(this);
 	
-	//The game which the server will run on
-	private GameLogic game=null;
+	//The rooms, each with a game of its own
+	private final RoomRegistry rooms;
+	
+	//Runs the rooms' work, a thread per core
+	private ExecutorService roomPool=null;
 	
 	//The UI responsible for visualizing the server's output
 	private ServerUI serverUI=null;
 	
+	//Hands the messages to the UI without holding anybody up
+	private final ServerLog log;
+	
+	//How clients are served, chosen before listening starts
+	private ConnectionMode connectionMode=ConnectionMode.THREAD_PER_CLIENT;
+	
+	//Used in NIO mode, created when first needed
+	private NioConnectionEngine nioEngine=null;
+	private int ioLoops=Runtime.getRuntime().availableProcessors();
+	
+	//Counters shared by all connections
+	private final ConnectionStats stats=new ConnectionStats();
+	
+	//Runs the users' asynchronous work, such as writing to their sockets
+	private Executor dispatchPool=null;
+	
+	//Runs delayed work, such as removing players who have not come back
+	private ScheduledExecutorService scheduler=null;
+	
+	//Bytes queued for a client above which it is considered slow, and how
+	//long (in ms) it may stay slow before being disconnected
+	private long outboundHighWaterMark=64*1024;
+	private long slowConsumerTimeout=10000;
+	
+	//Whether clients may ask for their connection to be compressed
+	private volatile boolean compressionAllowed=true;
+	
+	//Decides which new connections are served
+	private final AdmissionControl admission=new AdmissionControl();
+	
+	//How long (in ms) the player of a closed connection is kept for its
+	//client to resume, 0 to remove it straight away
+	private volatile long resumeGracePeriod=30000;
+	
+	//How long (in ms) a finished game is shown before a new match starts
+	private volatile long matchResetDelay=3000;
+	
+	//The players' sessions, for resuming them
+	private final SessionRegistry sessions=new SessionRegistry(this);
+	
 	
 	public ServerLogic(String mapFilePath,ServerUI ui) throws FileNotFoundException,ParseException{
-		game=new GameLogic(mapFilePath);
 		serverUI=ui;
+		log=new ServerLog(ui);
+		rooms=new RoomRegistry(this,mapFilePath);
+		//A broken map is reported straight away
+		rooms.open(RoomRegistry.DEFAULT,new GameLogic(mapFilePath));
+	}
+	
+	public ServerLogic(String mapFilePath,ServerUI ui,ConnectionMode mode) throws FileNotFoundException,ParseException{
+		this(mapFilePath,ui);
+		setConnectionMode(mode);
 	}
 	
 	/**
@@ -55,11 +119,235 @@ public class ServerLogic implements Runnable{
 	}
 	
 	/**
-	 * Returns the currently used instance of GameLogic
+	 * Sets the maximum number of pending connections the operating system
+	 * queues for us, effective the next time listening starts
+	 * @param newBacklog
+	 */
+	public void setBacklog(int newBacklog){
+		if(newBacklog<1)
+			throw new IllegalArgumentException("The backlog must be positive");
+		backlog=newBacklog;
+	}
+	
+	public long getOutboundHighWaterMark(){
+		return outboundHighWaterMark;
+	}
+	
+	/**
+	 * Sets how many bytes may be queued for a client before redundant
+	 * messages to it are dropped, affects clients connecting afterwards
+	 * @param bytes
+	 */
+	public void setOutboundHighWaterMark(long bytes){
+		if(bytes<1)
+			throw new IllegalArgumentException("The high-water mark must be positive");
+		outboundHighWaterMark=bytes;
+	}
+	
+	public long getSlowConsumerTimeout(){
+		return slowConsumerTimeout;
+	}
+	
+	/**
+	 * Sets how long (in ms) a client may stay above the high-water mark
+	 * before it is disconnected, affects clients connecting afterwards
+	 * @param millis
+	 */
+	public void setSlowConsumerTimeout(long millis){
+		if(millis<0)
+			throw new IllegalArgumentException("The timeout must not be negative");
+		slowConsumerTimeout=millis;
+	}
+	
+	public boolean isCompressionAllowed(){
+		return compressionAllowed;
+	}
+	
+	/**
+	 * Sets whether clients asking for compression (DEFLATE) get it,
+	 * affects clients connecting afterwards
+	 * @param allowed
+	 */
+	public void setCompressionAllowed(boolean allowed){
+		compressionAllowed=allowed;
+	}
+	
+	public long getResumeGracePeriod(){
+		return resumeGracePeriod;
+	}
+	
+	/**
+	 * Sets how long (in ms) the player of a closed connection is kept for
+	 * its client to come back with RESUME, 0 to remove it straight away.
+	 * Affects clients connecting afterwards.
+	 * @param millis
+	 */
+	public void setResumeGracePeriod(long millis){
+		if(millis<0)
+			throw new IllegalArgumentException("The grace period must not be negative");
+		resumeGracePeriod=millis;
+	}
+	
+	public long getMatchResetDelay(){
+		return matchResetDelay;
+	}
+	
+	/**
+	 * Sets how long (in ms) the players of a finished game are left to see
+	 * who has won before the game is reset for a new match, 0 to reset it
+	 * straight away
+	 * @param millis
+	 */
+	public void setMatchResetDelay(long millis){
+		if(millis<0)
+			throw new IllegalArgumentException("The reset delay must not be negative");
+		matchResetDelay=millis;
+	}
+	
+	/**
+	 * Returns the players' sessions
+	 * @return
+	 */
+	SessionRegistry getSessions(){
+		return sessions;
+	}
+	
+	/**
+	 * Returns the limits on concurrent connections, in total and per address
+	 * @return
+	 */
+	public AdmissionControl getAdmission(){
+		return admission;
+	}
+	
+	/**
+	 * Returns the way clients are served
+	 * @return
+	 */
+	public ConnectionMode getConnectionMode(){
+		return connectionMode;
+	}
+	
+	/**
+	 * Sets the way clients are served, only allowed while not listening.
+	 * There is no fallback for VIRTUAL_THREADS: on a JVM without virtual
+	 * threads (before 21) it is refused.
+	 * @param mode
+	 * @throws UnsupportedOperationException if the JVM cannot serve clients that way
+	 */
+	public void setConnectionMode(ConnectionMode mode){
+		if(isListening())
+			throw new IllegalStateException("Cannot change the connection mode while listening");
+		if(mode==ConnectionMode.VIRTUAL_THREADS&&!VirtualThreads.isSupported())
+			throw new UnsupportedOperationException("Virtual threads are not supported by this JVM");
+		connectionMode=mode;
+	}
+	
+	/**
+	 * Creates a thread for the listener or for a client, which kind of
+	 * thread depends on the connection mode
+	 * @param task
+	 * @return an unstarted thread
+	 */
+	Thread newThread(Runnable task){
+		if(connectionMode==ConnectionMode.VIRTUAL_THREADS)
+			return VirtualThreads.newThread(task);
+		return new Thread(task);
+	}
+	
+	/**
+	 * Sets the number of selector loops used in NIO mode, only effective
+	 * before the first client has been served in that mode
+	 * @param count
+	 */
+	public void setIoLoops(int count){
+		if(count<1)
+			throw new IllegalArgumentException("At least one IO loop is needed");
+		ioLoops=count;
+	}
+	
+	/**
+	 * Returns the pool shared by the users' dispatchers, created when first needed
+	 * @return
+	 */
+	synchronized Executor getDispatchPool(){
+		if(dispatchPool==null&&connectionMode==ConnectionMode.VIRTUAL_THREADS)
+			//A virtual thread per task: a cached pool would keep every one it
+			//started parked for a minute, its stack on the heap
+			dispatchPool=new Executor(){
+				@Override public void execute(Runnable task){
+					newThread(task).start();
+				}
+			};
+		if(dispatchPool==null)
+			dispatchPool=Executors.newCachedThreadPool(new ThreadFactory(){
+				@Override public Thread newThread(Runnable task){
+					Thread thread=ServerLogic.this.newThread(task);
+					//The pool must not keep the server alive on its own
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		return dispatchPool;
+	}
+	
+	/**
+	 * Returns the pool shared by the rooms' executors, created when first
+	 * needed. The rooms' work does not block, so a thread per core is enough.
+	 * @return
+	 */
+	synchronized Executor getRoomPool(){
+		if(roomPool==null)
+			roomPool=Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),new ThreadFactory(){
+				@Override public Thread newThread(Runnable task){
+					Thread thread=ServerLogic.this.newThread(task);
+					//The pool must not keep the server alive on its own
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		return roomPool;
+	}
+	
+	/**
+	 * Returns the executor for delayed work, created when first needed
+	 * @return
+	 */
+	synchronized ScheduledExecutorService getScheduler(){
+		if(scheduler==null)
+			scheduler=Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+				@Override public Thread newThread(Runnable task){
+					Thread thread=new Thread(task,"Scheduler");
+					//The scheduler must not keep the server alive on its own
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		return scheduler;
+	}
+	
+	/**
+	 * Returns the counters describing the connections' load
+	 * @return
+	 */
+	public ConnectionStats getStats(){
+		return stats;
+	}
+	
+	/**
+	 * Returns the game of the default room, the one shown by the UI
 	 * @return
 	 */
 	public GameLogic getGame(){
-		return game;
+		return rooms.getDefault().getGame();
+	}
+	
+	/**
+	 * Returns the rooms
+	 * @return
+	 */
+	public RoomRegistry getRooms(){
+		return rooms;
 	}
 	
 	/**
@@ -98,9 +386,21 @@ public class ServerLogic implements Runnable{
 	 * Initiate serving/listening
 	 */
 	public void startListening(){
-		handleMessage("Now listening for clients");
+		//Bind before the thread starts, so a port in use is reported to the caller
+		try{
+			if(connectionMode==ConnectionMode.NIO){
+				listenerChannel=ServerSocketChannel.open();
+				listenerChannel.bind(new InetSocketAddress(port),backlog);
+			}else{
+				listener=new ServerSocket(port,backlog);
+			}
+		}catch(IOException e){
+			handleError(e);
+			return;
+		}
+		handleMessage("Now listening for clients ("+connectionMode+")");
 		//We can't restart interrupted threads so a new one must be created
-		listenerThread=new Thread(this);
+		listenerThread=newThread(this);
 		listenerThread.start();
 	}
 	
@@ -110,6 +410,13 @@ public class ServerLogic implements Runnable{
 	public void stopListening(){
 		handleMessage("Stopped listening for clients");
 		listenerThread.interrupt();
+		//A blocking accept is only left once the listener is closed
+		try{
+			if(listener!=null)listener.close();
+			if(listenerChannel!=null)listenerChannel.close();
+		}catch(IOException e){
+			//Nothing we can do
+		}
 	}
 	
 	/**
@@ -119,64 +426,213 @@ public class ServerLogic implements Runnable{
 	 */
 	public void registerClient(Socket client) throws IOException{
 		//Do not worry about closing this - the user closes on it's own when its thread finishes
-		NetworkUser user=new NetworkUser(game,this,client);
+		NetworkUser user=new NetworkUser(this,client);
 		user.start();
 		//Inform the administrator
 		handleMessage("A new client ("+client.getInetAddress().getHostAddress()+") has arrived");
 	}
 	
+	/**
+	 * Hands a new channel to the NIO engine, which will serve it from now on
+	 * @param client
+	 * @throws IOException
+	 */
+	public void registerClient(SocketChannel client) throws IOException{
+		synchronized(this){
+			if(nioEngine==null)
+				nioEngine=new NioConnectionEngine(this,ioLoops);
+		}
+		nioEngine.register(client);
+		//Inform the administrator
+		handleMessage("A new client ("+client.socket().getInetAddress().getHostAddress()+") has arrived");
+	}
+	
 	/**
 	 * The listener thread's loop
 	 */
 	@Override public void run(){
+		if(connectionMode==ConnectionMode.NIO)
+			runNio();
+		else
+			runBlocking();
+	}
+	
+	/**
+	 * Accepts channels for the NIO engine as fast as they arrive, the accept
+	 * itself is blocking but is interrupted when we stop listening
+	 */
+	private void runNio(){
+		try{
+			while(!Thread.currentThread().isInterrupted()){
+				SocketChannel client=listenerChannel.accept();
+				InetAddress address=client.socket().getInetAddress();
+				//Refuse clients over the limits before spending anything on them
+				String refusal=admission.admit(address);
+				if(refusal!=null){
+					refuse(address,refusal);
+					//A client going away meanwhile must not stop us accepting others
+					try{
+						client.write(ByteBuffer.wrap(refusalMessage(refusal)));
+					}catch(IOException e){
+						//It has gone already
+					}finally{
+						closeQuietly(client);
+					}
+					continue;
+				}
+				try{
+					registerClient(client);
+				}catch(IOException|RuntimeException e){
+					//Problem with registering the client's channel
+					handleError(e);
+					admission.release(address);
+					closeQuietly(client);
+				}
+			}
+		}catch(AsynchronousCloseException e){
+			//Ignore this - it is the standard method of exiting the loop
+		}catch(IOException e){
+			handleError(e);
+		}finally{
+			try{
+				listenerChannel.close();
+			}catch(IOException e){
+				//Nothing we can do
+			}
+		}
+	}
+	
+	/**
+	 * Accepts sockets as fast as they arrive, every one of them gets a thread
+	 * of its own. The accept is blocking, stopListening closes the socket
+	 * to get us out of it.
+	 */
+	private void runBlocking(){
 		try{
-			//Create a new ServerSocket to listen from
-			listener=new ServerSocket(port);
-			//Enable it to be a (kind of) non-blocking
-			listener.setSoTimeout(200);
-			while(true){
+			while(!Thread.currentThread().isInterrupted()){
+				Socket client;
 				try{
-					registerClient(listener.accept());
-				}catch(SocketTimeoutException ste){
-					//Ignore this
-				}catch(IOException e){
+					client=listener.accept();
+				}catch(SocketException e){
+					//The listener has been closed by stopListening
+					if(listener.isClosed())break;
+					throw e;
+				}
+				InetAddress address=client.getInetAddress();
+				//Refuse clients over the limits before spending a thread on them
+				String refusal=admission.admit(address);
+				if(refusal!=null){
+					refuse(address,refusal);
+					//A client going away meanwhile must not stop us accepting others
+					try{
+						client.getOutputStream().write(refusalMessage(refusal));
+					}catch(IOException e){
+						//It has gone already
+					}finally{
+						closeQuietly(client);
+					}
+					continue;
+				}
+				try{
+					registerClient(client);
+				}catch(IOException|RuntimeException e){
 					//Problem with opening the client's streams
 					handleError(e);
+					admission.release(address);
+					closeQuietly(client);
 				}
-				Thread.sleep(50);
 			}
 		}catch(IOException e){
 			handleError(e);
-		}catch(InterruptedException e){
-			//Ignore this - it is the standard method of exiting the loop
 		}finally{
 			try{
 				listener.close();
-			}catch(NullPointerException|IOException e){
+			}catch(IOException e){
 				//Nothing we can do
 			}
 		}
 	}
 	
+	/**
+	 * Informs the administrator that a client has been refused
+	 * @param address
+	 * @param reason
+	 */
+	private void refuse(InetAddress address,String reason){
+		handleMessage(ServerLog.Level.WARNING,"Refused a client ("+address.getHostAddress()+"): "+reason);
+	}
+	
+	/**
+	 * Closes a client's connection which has not been handed to a user
+	 * @param client - a socket or a channel
+	 */
+	private static void closeQuietly(Closeable client){
+		try{
+			client.close();
+		}catch(IOException e){
+			//Nothing we can do, nor need to
+		}
+	}
+	
+	/**
+	 * The last (and only) thing a refused client is sent
+	 * @param reason
+	 * @return the encoded message
+	 */
+	private static byte[] refusalMessage(String reason){
+		return ("FAIL "+reason+System.getProperty("line.separator")).getBytes();
+	}
+	
+	/**
+	 * Called by a user once its connection has been closed
+	 * @param address - the address the connection came from
+	 */
+	void clientClosed(InetAddress address){
+		stats.connectionClosed();
+		admission.release(address);
+	}
+	
 	/**
 	 * Handles recovery from exceptions, currently just informing the administrator
 	 * @param error
 	 */
 	public void handleError(Throwable error){
+		log.log(ServerLog.Level.WARNING,"Error: "+error);
 		serverUI.handleError(error);
 	}
 	
 	/**
-	 * Handles messages, currently just informing the administrator
+	 * Handles messages, currently just informing the administrator. The
+	 * message is logged as INFO.
 	 */
 	public void handleMessage(String message){
-		serverUI.handleMessage(message);
+		log.log(ServerLog.Level.INFO,message);
+	}
+	
+	/**
+	 * Logs a message for the administrator, never waits
+	 * @param level
+	 * @param message
+	 */
+	public void handleMessage(ServerLog.Level level,String message){
+		log.log(level,message);
 	}
 	
 	/**
-	 * Updates the map view on the UI
+	 * @param level
+	 * @return whether messages of that level are logged, so that they need
+	 *         to be built at all
 	 */
-	public void updateMapView(){
-		serverUI.updateMapView(game.getMapView());
+	public boolean isLogging(ServerLog.Level level){
+		return log.isLogged(level);
 	}
+	
+	/**
+	 * Returns the server's log
+	 * @return
+	 */
+	public ServerLog getLog(){
+		return log;
+	}
+
 }
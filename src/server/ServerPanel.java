@@ -2,21 +2,33 @@ package server;
 
 import java.awt.Dimension;
 import java.awt.FlowLayout;
+import java.awt.Point;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.InputEvent;
+import java.awt.event.MouseWheelEvent;
+import java.awt.event.MouseWheelListener;
+import java.lang.reflect.InvocationTargetException;
+import java.util.List;
 
 import javax.swing.BorderFactory;
 import javax.swing.BoxLayout;
 import javax.swing.ButtonGroup;
-import javax.swing.JEditorPane;
+import javax.swing.JButton;
 import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JRadioButton;
 import javax.swing.JScrollPane;
+import javax.swing.JTextArea;
 import javax.swing.JTextField;
+import javax.swing.JViewport;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import javax.swing.text.BadLocationException;
-import javax.swing.text.Document;
+
+import server.game.GameLogic;
+import server.game.Location;
 
 /**
  * Visualizes ServerLogic output via a Swing JPanel
@@ -39,9 +51,25 @@ public class ServerPanel extends JPanel implements ServerUI{
 	
 	//A canvas responsible for visualizing the map
 	private GameCanvas canvas=new GameCanvas();
+	private JScrollPane canvasScroll=new JScrollPane(canvas);
+	
+	//The view of the map shown by the canvas, and the game it belongs to
+	private char[][] mapView=null;
+	private GameLogic shownGame=null;
+	
+	//How often (per second) the map view is brought up to date
+	private static final int FRAME_RATE=20;
 	
-	//Displays server output and input from clients
-	private JEditorPane log=new JEditorPane();
+	//Pulls the changes to the map at the frame rate, however busy the game is
+	private final Timer frameClock=new Timer(1000/FRAME_RATE,new ActionListener(){
+		@Override public void actionPerformed(ActionEvent e){
+			refreshMapView();
+		}
+	});
+	
+	//Displays server output and input from clients, the latest lines only
+	private JTextArea log=new JTextArea();
+	private static final int LOG_LINES=1000;
 	
 	//The server which this panel will visualize
 	private ServerLogic server=null;
@@ -52,9 +80,19 @@ public class ServerPanel extends JPanel implements ServerUI{
 	 * @param size - determines width and height, (width=size*2.5 , height=size)
 	 */
 	public ServerPanel(String mapFilePath, int size){
+		this(mapFilePath,size,ConnectionMode.THREAD_PER_CLIENT);
+	}
+	
+	/**
+	 * Construct a new server panel
+	 * @param mapFilePath
+	 * @param size - determines width and height, (width=size*2.5 , height=size)
+	 * @param mode - how the server will serve its clients
+	 */
+	public ServerPanel(String mapFilePath, int size, ConnectionMode mode){
 		try{
 			//Create a new server from a map file
-			server=new ServerLogic(mapFilePath,this);
+			server=new ServerLogic(mapFilePath,this,mode);
 			
 			setLayout(new FlowLayout());
 			
@@ -62,18 +100,26 @@ public class ServerPanel extends JPanel implements ServerUI{
 			portField.setText("60000");
 			
 			
-			//Set up the initial map view
-			updateMapView(server.getGame().getMapView());
+			//Set up the initial map view, it is kept up to date once the panel is shown
+			refreshMapView();
 			
 			//Set up a scroll pane for the map canvas ( the map might be too big)
-			JScrollPane canvasScroll=new JScrollPane(canvas);
 			canvasScroll.setPreferredSize(new Dimension(size,size));
 			add(canvasScroll);
 			
+			//Zoom with the mouse wheel while Ctrl is held, scroll without
+			canvas.addMouseWheelListener(new MouseWheelListener(){
+				@Override public void mouseWheelMoved(MouseWheelEvent e){
+					if((e.getModifiersEx()&InputEvent.CTRL_DOWN_MASK)!=0)
+						zoom(-e.getWheelRotation());
+					else
+						canvasScroll.dispatchEvent(SwingUtilities.convertMouseEvent(canvas,e,canvasScroll));
+				}
+			});
+			setScrollSteps();
+			
 			//Set up the log
 			log.setEditable(false);
-			log.setContentType("text/html");
-			log.setPreferredSize(new Dimension(size,size));
 			
 			//Set up a scroll pane for the log
 			JScrollPane logScroll=new JScrollPane(log);
@@ -138,6 +184,21 @@ public class ServerPanel extends JPanel implements ServerUI{
 			options.add(serve);
 			options.add(noServe);
 			
+			//Zoom the map in and out
+			JButton zoomIn=new JButton("Zoom in"),zoomOut=new JButton("Zoom out");
+			zoomIn.addActionListener(new ActionListener(){
+				@Override public void actionPerformed(ActionEvent e){
+					zoom(1);
+				}
+			});
+			zoomOut.addActionListener(new ActionListener(){
+				@Override public void actionPerformed(ActionEvent e){
+					zoom(-1);
+				}
+			});
+			options.add(zoomIn);
+			options.add(zoomOut);
+			
 			//Add the entire panel
 			add(options);
 			
@@ -156,21 +217,113 @@ public class ServerPanel extends JPanel implements ServerUI{
 	}
 	
 	/**
-	 * Handles messages by displaying them in the log
+	 * Handles messages by displaying them in the log. The log's thread waits
+	 * for the EDT, so that the log drops messages rather than flooding the
+	 * EDT when it falls behind. The oldest lines are dropped once there are
+	 * too many.
 	 */
-	@Override public void handleMessage(String message){
-		Document doc=log.getDocument();
+	@Override public void handleMessage(final String messages){
+		Runnable append=new Runnable(){
+			@Override public void run(){
+				log.append(messages+"\n");
+				int excess=log.getLineCount()-1-LOG_LINES;
+				if(excess>0){
+					try{
+						log.replaceRange("",0,log.getLineStartOffset(excess));
+					}catch(BadLocationException ble){
+						//Never occurs
+					}
+				}
+			}
+		};
 		try{
-			doc.insertString(doc.getLength(),message+"\n",null);
-		}catch(BadLocationException ble){
-			//Never occurs
+			SwingUtilities.invokeAndWait(append);
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		}catch(InvocationTargetException e){
+			e.printStackTrace();
 		}
 	}
 	
 	/**
-	 * Updates the map view
+	 * Zooms the map in or out by a number of zoom levels, keeping the tile
+	 * in the middle of the visible area in the middle
+	 * @param levels - how many levels to zoom in, negative to zoom out
 	 */
-	@Override public void updateMapView(char[][] mapView){
-		canvas.update(mapView);	
+	private void zoom(int levels){
+		int[] sizes=GameCanvas.ZOOM_LEVELS;
+		int level=0;
+		while(level<sizes.length-1&&sizes[level]<canvas.getTileSize())
+			level++;
+		int newLevel=Math.max(0,Math.min(sizes.length-1,level+levels));
+		int oldSize=canvas.getTileSize(),newSize=sizes[newLevel];
+		if(newSize==oldSize)return;
+		
+		JViewport viewport=canvasScroll.getViewport();
+		Dimension extent=viewport.getExtentSize();
+		Point position=viewport.getViewPosition();
+		//The middle of the visible area, in tiles
+		double middleCol=(position.x+extent.width/2.0)/oldSize;
+		double middleRow=(position.y+extent.height/2.0)/oldSize;
+		
+		canvas.setTileSize(newSize);
+		setScrollSteps();
+		//The canvas is laid out later, the viewport needs its size now
+		Dimension view=canvas.getPreferredSize();
+		viewport.setViewSize(view);
+		int x=(int)(middleCol*newSize-extent.width/2.0);
+		int y=(int)(middleRow*newSize-extent.height/2.0);
+		viewport.setViewPosition(new Point(
+				Math.max(0,Math.min(x,view.width-extent.width)),
+				Math.max(0,Math.min(y,view.height-extent.height))));
+	}
+	
+	/**
+	 * Scrolls the map a tile at a time (a few pixels when zoomed out)
+	 */
+	private void setScrollSteps(){
+		int step=Math.max(canvas.getTileSize(),8);
+		canvasScroll.getHorizontalScrollBar().setUnitIncrement(step);
+		canvasScroll.getVerticalScrollBar().setUnitIncrement(step);
+	}
+	
+	/**
+	 * Pulls the map's changes again, once the panel is shown again
+	 */
+	@Override public void addNotify(){
+		super.addNotify();
+		frameClock.start();
+	}
+	
+	/**
+	 * Stops pulling the map's changes once the panel is no longer shown, so
+	 * that the game stops keeping track of them
+	 */
+	@Override public void removeNotify(){
+		super.removeNotify();
+		frameClock.stop();
+		if(shownGame!=null)
+			shownGame.stopMapChanges();
+		shownGame=null;
+	}
+	
+	/**
+	 * Brings the map view up to date with the game, repainting only the
+	 * tiles which have changed since the last time. Runs on the EDT.
+	 */
+	private void refreshMapView(){
+		GameLogic game=server.getGame();
+		if(game!=shownGame){
+			//Nobody pulls the changes of the game shown so far any more
+			if(shownGame!=null)
+				shownGame.stopMapChanges();
+			shownGame=game;
+			mapView=game.getMapView();
+			canvas.update(mapView);
+			return;
+		}
+		List<Location> changed=game.pullMapChanges(mapView);
+		if(!changed.isEmpty())
+			canvas.updateTiles(changed);
 	}
 }
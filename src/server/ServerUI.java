@@ -7,6 +7,10 @@ package server;
  */
 public interface ServerUI {
 	public void handleError(Throwable error);
-	public void handleMessage(String message);
-	public void updateMapView(char[][] mapView);
+	/**
+	 * Shows messages from the server's log. Called by the log's thread
+	 * alone, with one message per line, as many as were logged meanwhile.
+	 * @param messages
+	 */
+	public void handleMessage(String messages);
 }
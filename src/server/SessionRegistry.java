@@ -0,0 +1,119 @@
+package server;
+
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps track of the players' sessions, so that a client whose connection
+ * has dropped can take its player back. Every player added for a
+ * connection is given a session, identified by a random token the client
+ * is sent ("SESSION token"). When the connection closes the player is kept
+ * in the game, detached, for the server's grace period; a client sending
+ * "RESUME token" within it is handed the player back. Once the grace
+ * period is over the player is removed, as it used to be straight away.
+ * 
+ * While a session waits to be resumed it keeps the place of its
+ * connection in the room, so that the room is not closed meanwhile.
+ */
+public class SessionRegistry {
+
+	/**
+	 * A player's session
+	 */
+	static class Session{
+		final Room room;
+		final int playerID;
+		//Removes the player once the grace period is over, null while connected
+		ScheduledFuture<?> expiry=null;
+		//Tells an expiry which has lost the race against a resume that it is stale
+		int suspensions=0;
+
+		Session(Room newRoom,int newPlayerID){
+			room=newRoom;
+			playerID=newPlayerID;
+		}
+	}
+
+	private final ServerLogic server;
+
+	private final HashMap<String,Session> sessions=new HashMap<String,Session>();
+
+	private final SecureRandom random=new SecureRandom();
+
+	SessionRegistry(ServerLogic newServer){
+		server=newServer;
+	}
+
+	/**
+	 * Opens a session for a player which has just been added
+	 * @param room - the room of the player
+	 * @param playerID
+	 * @return the session's token
+	 */
+	synchronized String open(Room room,int playerID){
+		String token;
+		do{
+			token=Long.toHexString(random.nextLong())+Long.toHexString(random.nextLong());
+		}while(sessions.containsKey(token));
+		sessions.put(token,new Session(room,playerID));
+		return token;
+	}
+
+	/**
+	 * Forgets a session, its player is not coming back
+	 * @param token
+	 */
+	synchronized void close(String token){
+		Session session=sessions.remove(token);
+		if(session!=null&&session.expiry!=null)
+			session.expiry.cancel(false);
+	}
+
+	/**
+	 * Starts the grace period of a session whose connection has closed. The
+	 * player must have been detached already. The session takes over the
+	 * connection's place in the room.
+	 * @param token
+	 */
+	synchronized void suspend(final String token){
+		final Session session=sessions.get(token);
+		if(session==null||session.expiry!=null)return;
+		final int suspension=++session.suspensions;
+		session.expiry=server.getScheduler().schedule(new Runnable(){
+			@Override public void run(){
+				synchronized(SessionRegistry.this){
+					//Resumed (or closed) meanwhile
+					if(sessions.get(token)!=session||session.suspensions!=suspension||session.expiry==null)
+						return;
+					sessions.remove(token);
+				}
+				//The room's game is only touched on the room's executor
+				session.room.execute(new Runnable(){
+					@Override public void run(){
+						session.room.getGame().removeDetachedPlayer(session.playerID);
+						server.getRooms().leave(session.room);
+						server.getStats().sessionExpired();
+						server.handleMessage("Session of player "+session.playerID+" has expired");
+					}
+				});
+			}
+		},server.getResumeGracePeriod(),TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Takes a suspended session back for a new connection, which takes over
+	 * its place in the room
+	 * @param token
+	 * @return the session, null if there is no such session waiting to be
+	 *         resumed
+	 */
+	synchronized Session resume(String token){
+		Session session=sessions.get(token);
+		if(session==null||session.expiry==null)return null;
+		session.expiry.cancel(false);
+		session.expiry=null;
+		return session;
+	}
+}
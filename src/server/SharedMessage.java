@@ -0,0 +1,49 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A message sent to many connections at once. It is encoded once per kind
+ * of codec, and every connection queues a view of the same read-only
+ * buffer. Codecs whose encoding depends on what they have encoded before
+ * (see Codec.isSelfContained) still encode it themselves.
+ */
+final class SharedMessage {
+
+	private final String text;
+	private final ConnectionStats stats;
+
+	//The encodings made so far, by the class of the codec which made them
+	private final ConcurrentHashMap<Class<?>,ByteBuffer> encodings=new ConcurrentHashMap<Class<?>,ByteBuffer>();
+
+	SharedMessage(String newText,ConnectionStats newStats){
+		text=newText;
+		stats=newStats;
+	}
+
+	String getText(){
+		return text;
+	}
+
+	/**
+	 * @param codec - the codec of the connection the message is queued on
+	 * @return the message encoded for it, ready to be written
+	 */
+	ByteBuffer encodeFor(Codec codec){
+		if(!codec.isSelfContained())
+			return codec.encode(text);
+		ByteBuffer encoded=encodings.get(codec.getClass());
+		if(encoded==null){
+			encoded=codec.encode(text).asReadOnlyBuffer();
+			ByteBuffer raced=encodings.putIfAbsent(codec.getClass(),encoded);
+			if(raced!=null)
+				encoded=raced;
+			else
+				stats.broadcastEncoded();
+		}
+		stats.broadcastShared();
+		//Every connection gets its own position and limit
+		return encoded.duplicate();
+	}
+}
@@ -0,0 +1,181 @@
+package server;
+
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.GraphicsEnvironment;
+import java.awt.Image;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+/**
+ * The tiles' images, scaled to a tile size once rather than every time a
+ * tile is painted. The images are read from img/ once, by whichever canvas
+ * needs them first, and shared by every canvas. Tiles holding an item are
+ * drawn over a floor once, when the atlas is built, so that every tile is
+ * painted with a single image.
+ *
+ * An atlas is built for one tile size; a canvas whose tile size changes
+ * asks for another one (see forSize). client.gui.SpriteAtlas is the
+ * client's copy of it.
+ *
+ * From afar each tile is a single pixel, of the average colour of its
+ * image (see getColor).
+ */
+public final class SpriteAtlas {
+
+	//The images as they are read, by map character
+	private static final BufferedImage[] originals=new BufferedImage[128];
+
+	//The colour of each tile as a whole, by map character, for maps seen from afar
+	private static final int[] colors=new int[128];
+
+	//The atlas built last, which is handed out again while the size stays the same
+	private static volatile SpriteAtlas last=null;
+
+	static{
+		load('#',"wall");
+		load('.',"floor");
+		load('G',"gold");
+		load('P',"player");
+		load('S',"sword");
+		load('A',"armor");
+		load('H',"potion");
+		load('L',"latern");
+		load('E',"exit");
+		for(char tile=0;tile<originals.length;tile++)
+			if(originals[tile]!=null)
+				colors[tile]=averageColor(tile);
+	}
+
+	private final int width,height;
+
+	//The scaled images, by map character, null for characters without one
+	private final BufferedImage[] sprites=new BufferedImage[128];
+
+	/**
+	 * Returns an atlas for a tile size, building it only if the last one
+	 * asked for was for another size
+	 * @param width - of a tile, in pixels
+	 * @param height - of a tile, in pixels
+	 * @return the atlas
+	 */
+	public static SpriteAtlas forSize(int width,int height){
+		SpriteAtlas atlas=last;
+		if(atlas==null||atlas.width!=width||atlas.height!=height){
+			atlas=new SpriteAtlas(width,height);
+			last=atlas;
+		}
+		return atlas;
+	}
+
+	private SpriteAtlas(int newWidth,int newHeight){
+		width=newWidth;
+		height=newHeight;
+		//Nothing to draw in a tile of no size
+		if(width<=0||height<=0)return;
+		for(char tile=0;tile<originals.length;tile++){
+			if(originals[tile]==null)continue;
+			BufferedImage sprite=createImage();
+			Graphics2D g=sprite.createGraphics();
+			//Items lie on the floor, walls and exits cover the whole tile
+			if(tile!='#'&&tile!='.'&&tile!='E'&&originals['.']!=null)
+				g.drawImage(scale(originals['.']),0,0,null);
+			g.drawImage(scale(originals[tile]),0,0,null);
+			g.dispose();
+			sprites[tile]=sprite;
+		}
+	}
+
+	/**
+	 * @return the width of a tile, in pixels
+	 */
+	public int getWidth(){
+		return width;
+	}
+
+	/**
+	 * @return the height of a tile, in pixels
+	 */
+	public int getHeight(){
+		return height;
+	}
+
+	/**
+	 * @param tile - the character of the tile on the map
+	 * @return the tile's image, scaled, null if it has none
+	 */
+	public BufferedImage get(char tile){
+		return tile<sprites.length?sprites[tile]:null;
+	}
+
+	/**
+	 * Returns the colour of a tile as a whole, for maps painted a pixel per
+	 * tile
+	 * @param tile - the character of the tile on the map
+	 * @return the colour as 0xRRGGBB, black for tiles without an image
+	 */
+	public static int getColor(char tile){
+		return tile<colors.length?colors[tile]:0;
+	}
+
+	/**
+	 * Averages the colour of a tile's image, lying on the floor if it is an
+	 * item, over black
+	 * @param tile
+	 * @return the colour as 0xRRGGBB
+	 */
+	private static int averageColor(char tile){
+		BufferedImage image=originals[tile];
+		int width=image.getWidth(),height=image.getHeight();
+		BufferedImage tileImage=new BufferedImage(width,height,BufferedImage.TYPE_INT_RGB);
+		Graphics2D g=tileImage.createGraphics();
+		if(tile!='#'&&tile!='.'&&tile!='E'&&originals['.']!=null)
+			g.drawImage(originals['.'],0,0,width,height,null);
+		g.drawImage(image,0,0,null);
+		g.dispose();
+		long red=0,green=0,blue=0;
+		for(int y=0;y<height;y++)
+			for(int x=0;x<width;x++){
+				int rgb=tileImage.getRGB(x,y);
+				red+=(rgb>>16)&0xFF;
+				green+=(rgb>>8)&0xFF;
+				blue+=rgb&0xFF;
+			}
+		long pixels=(long)width*height;
+		return (int)(red/pixels)<<16|(int)(green/pixels)<<8|(int)(blue/pixels);
+	}
+
+	/**
+	 * Creates an image for a sprite, in the screen's format if there is a
+	 * screen so that drawing it needs no conversion
+	 */
+	private BufferedImage createImage(){
+		if(GraphicsEnvironment.isHeadless())
+			return new BufferedImage(width,height,BufferedImage.TYPE_INT_ARGB);
+		GraphicsConfiguration screen=GraphicsEnvironment.getLocalGraphicsEnvironment()
+				.getDefaultScreenDevice().getDefaultConfiguration();
+		return screen.createCompatibleImage(width,height,Transparency.TRANSLUCENT);
+	}
+
+	/**
+	 * Scales an image to the tile size, the way the tiles have always been
+	 * scaled so that they look the same as before
+	 * @param image
+	 * @return the scaled image
+	 */
+	private Image scale(BufferedImage image){
+		return image.getScaledInstance(width,height,Image.SCALE_DEFAULT);
+	}
+
+	private static void load(char tile,String name){
+		try{
+			originals[tile]=ImageIO.read(new File("img/"+name+".png"));
+		}catch(IOException e){
+			//Missing, someone has messed with the game files; the tile is left black
+		}
+	}
+}
@@ -0,0 +1,45 @@
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * The original protocol: one message per line
+ */
+public class TextCodec extends Codec {
+
+	//Longest line a client may send before it is considered misbehaving
+	private static final int MAX_LINE_LENGTH=8192;
+
+	private static final byte[] LINE_SEPARATOR=System.getProperty("line.separator").getBytes();
+
+	//The start of a line whose end has not arrived yet
+	private final ByteArrayOutputStream pendingLine=new ByteArrayOutputStream();
+
+	@Override public ByteBuffer encode(String message){
+		byte[] bytes=message.getBytes();
+		ByteBuffer buffer=ByteBuffer.allocate(bytes.length+LINE_SEPARATOR.length);
+		buffer.put(bytes).put(LINE_SEPARATOR).flip();
+		return buffer;
+	}
+
+	@Override public String decode(ByteBuffer in) throws IOException{
+		while(in.hasRemaining()){
+			byte b=in.get();
+			if(b!='\n'){
+				if(pendingLine.size()>=MAX_LINE_LENGTH)
+					throw new IOException("Line too long");
+				pendingLine.write(b);
+				continue;
+			}
+			String line=new String(pendingLine.toByteArray(),Charset.defaultCharset());
+			pendingLine.reset();
+			if(line.endsWith("\r"))
+				line=line.substring(0,line.length()-1);
+			return line;
+		}
+		return null;
+	}
+}
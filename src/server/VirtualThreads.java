@@ -0,0 +1,52 @@
+package server;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Gives access to virtual threads when the running JVM provides them.
+ * They are looked up reflectively so the server still builds and runs
+ * on JVMs without them.
+ */
+final class VirtualThreads {
+
+	//Null when virtual threads are not available
+	private static final ThreadFactory FACTORY=lookUpFactory();
+
+	private VirtualThreads(){
+	}
+
+	/**
+	 * @return true if the running JVM can create virtual threads
+	 */
+	static boolean isSupported(){
+		return FACTORY!=null;
+	}
+
+	/**
+	 * Creates a new (unstarted) virtual thread
+	 * @param task
+	 * @return the thread
+	 * @throws UnsupportedOperationException if virtual threads are not available
+	 */
+	static Thread newThread(Runnable task){
+		if(FACTORY==null)
+			throw new UnsupportedOperationException("Virtual threads are not supported by this JVM");
+		return FACTORY.newThread(task);
+	}
+
+	/**
+	 * Equivalent of Thread.ofVirtual().factory()
+	 */
+	private static ThreadFactory lookUpFactory(){
+		try{
+			Method ofVirtual=Thread.class.getMethod("ofVirtual");
+			Object builder=ofVirtual.invoke(null);
+			//Looked up on the public interface, the builder's own class is not accessible
+			Method factory=Class.forName("java.lang.Thread$Builder").getMethod("factory");
+			return (ThreadFactory)factory.invoke(builder);
+		}catch(ReflectiveOperationException|RuntimeException e){
+			return null;
+		}
+	}
+}
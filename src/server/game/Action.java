@@ -0,0 +1,67 @@
+package server.game;
+
+/**
+ * A single action of a player's turn, as carried out by
+ * GameLogic.clientActions.
+ */
+public class Action {
+	/**
+	 * The kinds of actions which cost action points
+	 */
+	public enum Type {
+		MOVE, ATTACK, PICKUP
+	}
+
+	private final Type type;
+	private final CompassDirection direction;
+
+	private Action(Type type, CompassDirection direction) {
+		this.type = type;
+		this.direction = direction;
+	}
+
+	/**
+	 * @param direction
+	 * @return an action moving the player one tile in the given direction
+	 */
+	public static Action move(CompassDirection direction) {
+		return new Action(Type.MOVE, direction);
+	}
+
+	/**
+	 * @param direction
+	 * @return an action attacking the tile in the given direction
+	 */
+	public static Action attack(CompassDirection direction) {
+		return new Action(Type.ATTACK, direction);
+	}
+
+	/**
+	 * @return an action picking up the item on the player's tile
+	 */
+	public static Action pickup() {
+		return new Action(Type.PICKUP, null);
+	}
+
+	/**
+	 * 
+	 * @return the kind of action
+	 */
+	public Type getType() {
+		return this.type;
+	}
+
+	/**
+	 * 
+	 * @return the direction of a MOVE or ATTACK, null for a PICKUP
+	 */
+	public CompassDirection getDirection() {
+		return this.direction;
+	}
+
+	@Override
+	public String toString() {
+		return (this.direction == null) ? this.type.toString() : this.type
+				+ " " + this.direction;
+	}
+}
@@ -0,0 +1,29 @@
+package server.game;
+
+/**
+ * Thrown when one of the actions given to GameLogic.clientActions fails
+ */
+public class ActionsException extends CommandException {
+	private static final long serialVersionUID = 4630193470125527803L;
+
+	private final int done;
+
+	/**
+	 * @param message
+	 *            why the action failed
+	 * @param done
+	 *            the number of actions carried out before it
+	 */
+	public ActionsException(String message, int done) {
+		super(message);
+		this.done = done;
+	}
+
+	/**
+	 * 
+	 * @return the number of actions carried out before the failure
+	 */
+	public int getDone() {
+		return this.done;
+	}
+}
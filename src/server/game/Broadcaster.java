@@ -0,0 +1,26 @@
+package server.game;
+
+import java.util.List;
+
+/**
+ * Delivers what the game tells many players at once, so that it can be
+ * prepared once rather than for every player. Without one, GameLogic
+ * simply tells every player in turn.
+ */
+public interface Broadcaster {
+
+	/**
+	 * Sends the same message to every listener
+	 * 
+	 * @param listeners
+	 * @param message
+	 */
+	public void sendMessage(List<PlayerListener> listeners, String message);
+
+	/**
+	 * Informs every listener that its player has lost
+	 * 
+	 * @param listeners
+	 */
+	public void lose(List<PlayerListener> listeners);
+}
@@ -3,28 +3,76 @@ package server.game;
 import java.io.FileNotFoundException;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 import server.game.items.Armour;
 import server.game.items.GameItem;
 import server.game.items.Sword;
 
 /**
- * This class controls the game logic and interaction between players. Caution:
- * not thread-safe, but will need to be made so for a networked game.
+ * This class controls the game logic and interaction between players. All
+ * public methods which touch the game's state hold the game lock.
+ * 
+ * A game goes through a lifecycle of matches: it waits in the lobby until a
+ * player can take a turn, runs until a player wins, and is then finished
+ * until it is reset. A reset starts a new match on the same map, with the
+ * same players, without reading the map file again.
  */
 public class GameLogic {
+	/**
+	 * Where the game is in its lifecycle
+	 */
+	public enum State {
+		// Waiting for a player who can take a turn
+		LOBBY,
+		// A match is under way
+		RUNNING,
+		// A player has won, nothing can be done until the game is reset
+		FINISHED,
+		// The map and the players are being put back for a new match
+		RESETTING
+	}
+
 	Map map;
 
-	// Has a player won already?
-	private boolean playerWon = false;
+	// Guards the game's state. A ReentrantLock rather than a monitor, so that
+	// virtual threads waiting on it or blocking while holding it do not pin
+	// their carrier threads.
+	private final ReentrantLock lock = new ReentrantLock();
+
+	// How often and for how long the game lock has been held; only written
+	// by the thread holding the lock
+	private final AtomicLong lockHolds = new AtomicLong();
+	private final AtomicLong lockHoldNanos = new AtomicLong();
+	private volatile long maxLockHoldNanos = 0;
+	private long lockAcquiredAt = 0;
+
+	// Where the game is in its lifecycle; has a player won already?
+	private volatile State state = State.LOBBY;
 
 	private final List<Player> players;
 
 	// The current player's turn, -1 indicates game not started
 	private int currentPlayer = -1;
 
+	// Delivers messages meant for many players, null to tell each in turn
+	private volatile Broadcaster broadcaster = null;
+
+	// The tiles whose view has changed since the last pullMapChanges, each
+	// once, so there are never more of them than tiles on the map. Only
+	// kept while someone pulls them, see getMapView, null otherwise (a
+	// headless server never allocates them)
+	private List<Location> dirtyTiles = null;
+	private boolean[][] dirty = null;
+
+	// While clientActions runs, the locations observers must be told about
+	// are gathered here, so that they are notified once at the end
+	private List<Location> pendingNotifications = null;
+
 	/**
 	 * Constructor that specifies the map which the game should be played on.
 	 * 
@@ -55,10 +103,12 @@ public class GameLogic {
 	 * 
 	 * @return the id of the player
 	 */
-	synchronized public int addPlayer(PlayerListener player) {
+	public int addPlayer(PlayerListener player) {
+		acquire();
+		try {
 			final int playerID = this.players.size();
 	
-			boolean deadFlag=(allPlayersDead());
+			boolean deadFlag=(allPlayersAway());
 			
 			//Inform all alive players that there is a change in the game
 			if(!deadFlag)
@@ -69,60 +119,210 @@ public class GameLogic {
 			
 			this.players.add(new Player("Player " + playerID,
 					generateRandomStartLocation(), player));
+			markDirty(this.players.get(playerID).getLocation());
 	
 			if (this.players.size() == 1) {
 				startNewGame();
 			}
 			
 			//In case that all other players are dead/removed and the game is not won
-			if(deadFlag&&!playerWon){
+			if(deadFlag&&state!=State.FINISHED){
 				currentPlayer=playerID;
+				state=State.RUNNING;
 				startTurn();
 			}
 			
 
 	
 			return playerID;
+		} finally {
+			release();
+		}
 	}
 
 	/**
 	 * Removes a player from the game. The player is killed within the game, but
 	 * the reference is held. This might need some changing for a network.
 	 */
-	synchronized public void removePlayer(int playerID) {
-		removePlayer(playerID, false);
+	public void removePlayer(int playerID) {
+		acquire();
+		try {
+			removePlayer(playerID, false);
+		} finally {
+			release();
+		}
 	}
 
 	/**
 	 * Removes a player from the game. The player is killed within the game, but
 	 * the reference is held. This might need some changing for a network.
-	 * @param silent - when a player has exited from the client side, do not send them ENDTURN
+	 * @param silent - when a player has exited from the client side, do not send them ENDTURN.
+	 *                 Such a player is not brought back by a reset either.
 	 */
-	synchronized public void removePlayer(int playerID, boolean silent) {
-		
-			this.players.get(playerID).kill();
+	public void removePlayer(int playerID, boolean silent) {
+		acquire();
+		try {
+			if (silent) {
+				this.players.get(playerID).leave();
+			} else {
+				this.players.get(playerID).kill();
+			}
+			markDirty(this.players.get(playerID).getLocation());
 			if (this.currentPlayer == playerID) {
 				// Advance turn to handle death on player's turn
 				advanceTurn(playerID, silent);
 			}
+		} finally {
+			release();
+		}
 	}
 
 	/**
-	 * Starts a new game of the Dungeon of Dooooooooooooom.
+	 * Keeps a player whose connection is gone in the game, without a turn,
+	 * so that it can be resumed. Its turn is ended if it is the current one.
+	 */
+	public void detachPlayer(int playerID) {
+		acquire();
+		try {
+			assertPlayerExists(playerID);
+			final Player player = this.players.get(playerID);
+			if (player.isDead()) {
+				return;
+			}
+			player.setDetached(true);
+			if (this.currentPlayer == playerID) {
+				clientEndTurn(playerID, true);
+			}
+		} finally {
+			release();
+		}
+	}
+
+	/**
+	 * Removes a player kept by detachPlayer, unless it has been resumed
+	 * meanwhile.
+	 */
+	public void removeDetachedPlayer(int playerID) {
+		acquire();
+		try {
+			assertPlayerExists(playerID);
+			if (this.players.get(playerID).isDetached()) {
+				removePlayer(playerID, true);
+			}
+		} finally {
+			release();
+		}
+	}
+
+	/**
+	 * Hands a detached player over to a new listener. The player gets the
+	 * turn if nobody else can take it.
+	 * 
+	 * @param listener
+	 *            the listener of the player from now on
+	 * @return the goal, the gold and the hit points of the player, separated
+	 *         by spaces
+	 * @throws CommandException
+	 *             if the player has died or is not detached
 	 */
-	synchronized public void startNewGame() {
-		if (this.currentPlayer != -1) {
-			throw new RuntimeException("The game has already started.");
+	public String clientResume(int playerID, PlayerListener listener)
+			throws CommandException {
+		acquire();
+		try {
+			assertPlayerExists(playerID);
+			final Player player = this.players.get(playerID);
+			if (player.isDead() || !player.isDetached()) {
+				throw new CommandException("the player is no longer in the game");
+			}
+			player.setListener(listener);
+			player.setDetached(false);
+			if ((this.currentPlayer == -1 || isAway(this.players
+					.get(this.currentPlayer))) && this.state != State.FINISHED) {
+				this.currentPlayer = playerID;
+				this.state = State.RUNNING;
+				startTurn();
+			}
+			return getGoal() + " " + player.getGold() + " " + player.getHp();
+		} finally {
+			release();
 		}
+	}
+
+	/**
+	 * Starts a new game of the Dungeon of Dooooooooooooom.
+	 */
+	public void startNewGame() {
+		acquire();
+		try {
+			if (this.currentPlayer != -1) {
+				throw new RuntimeException("The game has already started.");
+			}
+
+			if (this.players.size() == 0) {
+				throw new RuntimeException(
+						"The game cannot be started with a single player");
+			}
 
-		if (this.players.size() == 0) {
-			throw new RuntimeException(
-					"The game cannot be started with a single player");
+			this.currentPlayer = 0;
+			this.state = State.RUNNING;
+
+			startTurn();
+		} finally {
+			release();
 		}
+	}
+
+	/**
+	 * Starts a new match once a player has won. The items are put back where
+	 * they were at first (only the tiles which have changed are touched) and
+	 * every player still in the game is brought back to life with nothing, at
+	 * a random location. Players who have left the game stay out.
+	 * 
+	 * Each player is sent GOLD again, as at the start of a game, followed by
+	 * the changes to its gold and hit points. The first player who can take a
+	 * turn is given it, otherwise the game waits in the lobby.
+	 * 
+	 * @return false if the game was not finished, and has not been reset
+	 */
+	public boolean reset() {
+		acquire();
+		try {
+			if (this.state != State.FINISHED) {
+				return false;
+			}
+			this.state = State.RESETTING;
 
-		this.currentPlayer = 0;
+			for (final Location location : this.map.reset()) {
+				markDirty(location);
+			}
+
+			this.currentPlayer = -1;
+			for (final Player player : this.players) {
+				if (player.hasLeft()) {
+					continue;
+				}
+				markDirty(player.getLocation());
+				player.newMatch(getGoal());
+				player.respawn(generateRandomStartLocation());
+				markDirty(player.getLocation());
+			}
 
-		startTurn();
+			for (int playerID = 0; playerID < this.players.size(); playerID++) {
+				if (!isAway(this.players.get(playerID))) {
+					this.currentPlayer = playerID;
+					break;
+				}
+			}
+			if (this.currentPlayer == -1) {
+				this.state = State.LOBBY;
+			} else {
+				this.state = State.RUNNING;
+				startTurn();
+			}
+			return true;
+		} finally {
+			release();
+		}
 	}
 
 	/**
@@ -133,12 +333,17 @@ public class GameLogic {
 	 * @return the message to be passed back to the command line
 	 * @throws CommandException
 	 */
-	synchronized public void clientHello(String newName, int playerID)
+	public void clientHello(String newName, int playerID)
 			throws CommandException {
-		assertPlayerExists(playerID);
+		acquire();
+		try {
+			assertPlayerExists(playerID);
 
-		// Change the player name and then say hello to them
-		this.players.get(playerID).setName(newName);
+			// Change the player name and then say hello to them
+			this.players.get(playerID).setName(newName);
+		} finally {
+			release();
+		}
 	}
 
 	/**
@@ -147,49 +352,59 @@ public class GameLogic {
 	 * 
 	 * @return the part of the map that the player can currently see.
 	 */
-	synchronized public String clientLook(int playerID) {
-		assertPlayerExists(playerID);
+	public String clientLook(int playerID) {
+		return clientView(playerID).toString();
+	}
 
-		final Player player = this.players.get(playerID);
+	/**
+	 * The portion of the map that the player can currently see, together with
+	 * where the player is, so that it can be compared with an earlier view.
+	 * 
+	 * @return the part of the map that the player can currently see.
+	 */
+	public PlayerView clientView(int playerID) {
+		acquire();
+		try {
+			assertPlayerExists(playerID);
 
-		// Work out how far the player can see
-		final int distance = player.lookDistance();
-
-		String lookReply = "";
-		// Iterate through the rows.
-		for (int rowOffset = -distance; rowOffset <= distance; ++rowOffset) {
-			String line = "";
-
-			// Iterate through the columns.
-			for (int colOffset = -distance; colOffset <= distance; ++colOffset) {
-
-				// Work out the location
-				final Location location = player.getLocation().atOffset(
-						colOffset, rowOffset);
-
-				char content = '?';
-				if (!player.canSeeTile(rowOffset, colOffset)) {
-					// It's outside the FoV so we don't know what it is.
-					content = 'X';
-				} else if (!this.map.insideMap(location)) {
-					// It's outside the map, so just call it a wall.
-					content = '#';
-				} else if (otherPlayerOnTile(location, playerID)) {
-					content = 'P';
-				} else {
-					// Look up and see what's on the map
-					content = this.map.getMapCell(location).toChar();
-				}
+			final Player player = this.players.get(playerID);
 
-				// Add to the line
-				line += content;
+			// Work out how far the player can see
+			final int distance = player.lookDistance();
+
+			final char[][] tiles = new char[2 * distance + 1][2 * distance + 1];
+			// Iterate through the rows.
+			for (int rowOffset = -distance; rowOffset <= distance; ++rowOffset) {
+
+				// Iterate through the columns.
+				for (int colOffset = -distance; colOffset <= distance; ++colOffset) {
+
+					// Work out the location
+					final Location location = player.getLocation().atOffset(
+							colOffset, rowOffset);
+
+					char content = '?';
+					if (!player.canSeeTile(rowOffset, colOffset)) {
+						// It's outside the FoV so we don't know what it is.
+						content = 'X';
+					} else if (!this.map.insideMap(location)) {
+						// It's outside the map, so just call it a wall.
+						content = '#';
+					} else if (otherPlayerOnTile(location, playerID)) {
+						content = 'P';
+					} else {
+						// Look up and see what's on the map
+						content = this.map.getMapCell(location).toChar();
+					}
+
+					tiles[rowOffset + distance][colOffset + distance] = content;
+				}
 			}
 
-			// Send a line of the look message
-			lookReply += line + System.getProperty("line.separator");
+			return new PlayerView(player.getLocation(), tiles);
+		} finally {
+			release();
 		}
-
-		return lookReply;
 	}
 
 	/**
@@ -203,8 +418,10 @@ public class GameLogic {
 	 * @return An indicator of the success or failure of the movement.
 	 * @throws CommandException
 	 */
-	synchronized public void clientMove(CompassDirection direction, int playerID)
+	public void clientMove(CompassDirection direction, int playerID)
 			throws CommandException {
+		acquire();
+		try {
 
 			assertPlayerExists(playerID);
 	
@@ -233,10 +450,61 @@ public class GameLogic {
 			player.decrementAp();
 	
 			// Move the player
+			markDirty(player.getLocation());
 			player.setLocation(location);
+			markDirty(location);
 	
 			advanceTurn(playerID, false);
 			return;
+		} finally {
+			release();
+		}
+	}
+
+	/**
+	 * Carries out several actions of a player's turn at once, holding the
+	 * game lock throughout. Stops at the first action which fails. Players
+	 * who can see any of what happened are notified once, at the end.
+	 * 
+	 * @param actions
+	 *            the actions, in the order they should be carried out
+	 * @return the number of actions carried out, always all of them
+	 * @throws ActionsException
+	 *             if an action has failed, telling how many succeeded
+	 */
+	public int clientActions(List<Action> actions, int playerID)
+			throws ActionsException {
+		acquire();
+		try {
+			assertPlayerExists(playerID);
+			this.pendingNotifications = new ArrayList<Location>();
+			int done = 0;
+			try {
+				for (final Action action : actions) {
+					switch (action.getType()) {
+						case MOVE :
+							clientMove(action.getDirection(), playerID);
+							break;
+						case ATTACK :
+							clientAttack(action.getDirection(), playerID);
+							break;
+						case PICKUP :
+							clientPickup(playerID);
+							break;
+					}
+					done++;
+				}
+			} catch (final CommandException e) {
+				throw new ActionsException(e.getMessage(), done);
+			} finally {
+				final List<Location> locations = this.pendingNotifications;
+				this.pendingNotifications = null;
+				notifyAllNearby(playerID, locations);
+			}
+			return done;
+		} finally {
+			release();
+		}
 	}
 
 	/**
@@ -249,68 +517,74 @@ public class GameLogic {
 	 * @return A message indicating the success or failure of the attack
 	 * @throws CommandException
 	 */
-	synchronized public void clientAttack(CompassDirection direction, int playerID)
+	public void clientAttack(CompassDirection direction, int playerID)
 		throws CommandException {
-		assertPlayerExists(playerID);
-		ensureNoWinner();
-		assertPlayersTurn(playerID);
-		assertPlayerAP(playerID);
+		acquire();
+		try {
+			assertPlayerExists(playerID);
+			ensureNoWinner();
+			assertPlayersTurn(playerID);
+			assertPlayerAP(playerID);
 		
-		final Player player = this.players.get(playerID);
+			final Player player = this.players.get(playerID);
 		
-		// Work out which square we're targeting
-		Location location =
-			this.players.get(playerID).getLocation().atCompassDirection(direction);
-		/**
-		 *1. Work out which player the attack is on...
-		 */
-		 Player target=null;
-		 //Used when removing the target
-		 int targetIndex=0;
-		 for(Player p:players){
-			 targetIndex++;
-			 if(p.getLocation().equals(location)){
-				 target=p;
-				 break;
-			 }
-		 }
-		 if(target==null)
-			 throw new CommandException("attacking (" + direction.toString()
-					 + ") a non-player tile");
-		 /** 2. Have you hit the target? - hint, you might want to make the chance
-		 * of a successful attack 75%?
-		 */
-		 Random rng=new Random();
-		 boolean success=(rng.nextInt(4)!=0);
-		 // Attacking depletes the AP, regardless of outcome
-		 player.zeroAP();
-		 if(success){
-			 /** 2.1 if the player has hit the target then hp of the target should be
-			 * reduced based on this formula...
+			// Work out which square we're targeting
+			Location location =
+				this.players.get(playerID).getLocation().atCompassDirection(direction);
+			/**
+			 *1. Work out which player the attack is on...
 			 */
-			 int armour=0,sword=0;
-			 if(player.hasItem(new Sword()))
-				 sword=1;
-			 if(target.hasItem(new Armour()))
-				 armour=1;
-			 int damage=1+sword-armour;
-			 /**
-			 * Player and target are informed about the attack as set out in the
-			 * wire_spec
+			 Player target=null;
+			 //Used when removing the target
+			 int targetIndex=0;
+			 for(Player p:players){
+				 targetIndex++;
+				 if(p.getLocation().equals(location)){
+					 target=p;
+					 break;
+				 }
+			 }
+			 if(target==null)
+				 throw new CommandException("attacking (" + direction.toString()
+						 + ") a non-player tile");
+			 /** 2. Have you hit the target? - hint, you might want to make the chance
+			 * of a successful attack 75%?
 			 */
-			 advanceTurn(playerID, false);
-			 target.decrementHealth(damage);
-			 //If the target is dead - remove it
-			 if(target.isDead()){
-				 target.sendMessage("How sad - you died...");
-				 removePlayer(targetIndex, false);
+			 Random rng=new Random();
+			 boolean success=(rng.nextInt(4)!=0);
+			 // Attacking depletes the AP, regardless of outcome
+			 player.zeroAP();
+			 if(success){
+				 /** 2.1 if the player has hit the target then hp of the target should be
+				 * reduced based on this formula...
+				 */
+				 int armour=0,sword=0;
+				 if(player.hasItem(new Sword()))
+					 sword=1;
+				 if(target.hasItem(new Armour()))
+					 armour=1;
+				 int damage=1+sword-armour;
+				 /**
+				 * Player and target are informed about the attack as set out in the
+				 * wire_spec
+				 */
+				 advanceTurn(playerID, false);
+				 target.decrementHealth(damage);
+				 markDirty(target.getLocation());
+				 //If the target is dead - remove it
+				 if(target.isDead()){
+					 target.sendMessage("How sad - you died...");
+					 removePlayer(targetIndex, false);
+				 }
+			 }else {
+				 //On a miss report the failure
+				 advanceTurn(playerID, false);
+				 throw new CommandException(" you missed!");
 			 }
-		 }else {
-			 //On a miss report the failure
-			 advanceTurn(playerID, false);
-			 throw new CommandException(" you missed!");
-		 }
 
+		} finally {
+			release();
+		}
 	}
 
 	/**
@@ -322,32 +596,38 @@ public class GameLogic {
 	 *         picking up.
 	 * @throws CommandException
 	 */
-	synchronized public void clientPickup(int playerID) throws CommandException {
-		assertPlayerExists(playerID);
-		ensureNoWinner();
-		assertPlayersTurn(playerID);
-		assertPlayerAP(playerID);
+	public void clientPickup(int playerID) throws CommandException {
+		acquire();
+		try {
+			assertPlayerExists(playerID);
+			ensureNoWinner();
+			assertPlayersTurn(playerID);
+			assertPlayerAP(playerID);
 
-		final Player player = this.players.get(playerID);
+			final Player player = this.players.get(playerID);
 
-		final Tile playersTile = this.map.getMapCell(player.getLocation());
+			final Tile playersTile = this.map.getMapCell(player.getLocation());
 
-		// Check that there is something to pick up
-		if (!playersTile.hasItem()) {
-			throw new CommandException("nothing to pick up");
-		}
+			// Check that there is something to pick up
+			if (!playersTile.hasItem()) {
+				throw new CommandException("nothing to pick up");
+			}
 
-		// Get the item
-		final GameItem item = playersTile.getItem();
+			// Get the item
+			final GameItem item = playersTile.getItem();
 
-		if (player.hasItem(item)) {
-			throw new CommandException("already have item");
-		}
+			if (player.hasItem(item)) {
+				throw new CommandException("already have item");
+			}
 
-		player.giveItem(item);
-		playersTile.removeItem();
+			player.giveItem(item);
+			this.map.removeItem(player.getLocation());
+			markDirty(player.getLocation());
 
-		advanceTurn(playerID, false);
+			advanceTurn(playerID, false);
+		} finally {
+			release();
+		}
 	}
 
 	/**
@@ -357,10 +637,18 @@ public class GameLogic {
 	 *            The message to be shouted
 	 */
 	public void clientShout(String message) {
-		synchronized (this){
-			for (final Player player : this.players) {
-				player.sendMessage(message);
+		acquire();
+		try {
+			final Broadcaster to = this.broadcaster;
+			if (to == null) {
+				for (final Player player : this.players) {
+					player.sendMessage(message);
+				}
+			} else {
+				to.sendMessage(listenersOf(this.players, -1), message);
 			}
+		} finally {
+			release();
 		}
 	}
 
@@ -369,8 +657,13 @@ public class GameLogic {
 	 * 
 	 * Just sets the AP to zero and advances as normal.
 	 */
-	synchronized public void clientEndTurn(int playerID) {
-		clientEndTurn(playerID, false);
+	public void clientEndTurn(int playerID) {
+		acquire();
+		try {
+			clientEndTurn(playerID, false);
+		} finally {
+			release();
+		}
 	}
 
 	/**
@@ -379,19 +672,26 @@ public class GameLogic {
 	 * Just sets the AP to zero and advances as normal.
 	 * @param silent - for when a players has exited on the client-side, it does not send them ENDTURN
 	 */
-	synchronized public void clientEndTurn(int playerID, boolean silent) {
+	public void clientEndTurn(int playerID, boolean silent) {
+		acquire();
+		try {
 			assertPlayerExists(playerID);
+			//Nobody has the turn while the game waits in the lobby
+			if(currentPlayer==-1)return;
 			if(!silent)this.players.get(playerID).endTurn();
 			int tmp=currentPlayer;
 			// Advance to the next alive player
 			do {
 				this.currentPlayer++;
 				if(this.currentPlayer>=players.size())currentPlayer=0;
-				//If everybody is dead stop looping
-				if(currentPlayer==tmp&&players.get(tmp).isDead())return;
-			} while (this.players.get(this.currentPlayer).isDead());
+				//If everybody is dead (or detached) stop looping
+				if(currentPlayer==tmp&&isAway(players.get(tmp)))return;
+			} while (isAway(this.players.get(this.currentPlayer)));
 			startTurn();
 		
+		} finally {
+			release();
+		}
 	}
 
 	/**
@@ -405,20 +705,52 @@ public class GameLogic {
 	 *            the row to location to put the player
 	 * @throws CommandException
 	 */
-	synchronized public void setPlayerPosition(int col, int row, int playerID)
+	public void setPlayerPosition(int col, int row, int playerID)
 		throws CommandException {
-		assertPlayerExists(playerID);
-		final Location location = new Location(col, row);
+		acquire();
+		try {
+			assertPlayerExists(playerID);
+			final Location location = new Location(col, row);
 
-		if (!this.map.insideMap(location)) {
-			throw new CommandException("invalid position");
-		}
+			if (!this.map.insideMap(location)) {
+				throw new CommandException("invalid position");
+			}
+
+			if (!this.map.getMapCell(location).isWalkable()) {
+				throw new CommandException("cannot walk on this tile");
+			}
 
-		if (!this.map.getMapCell(location).isWalkable()) {
-			throw new CommandException("cannot walk on this tile");
+			markDirty(this.players.get(playerID).getLocation());
+			this.players.get(playerID).setLocation(location);
+			markDirty(location);
+		} finally {
+			release();
 		}
+	}
+
+	/**
+	 * Sets what delivers messages meant for many players at once
+	 * 
+	 * @param newBroadcaster
+	 *            the broadcaster, or null to tell every player in turn
+	 */
+	public void setBroadcaster(Broadcaster newBroadcaster) {
+		this.broadcaster = newBroadcaster;
+	}
 
-		this.players.get(playerID).setLocation(location);
+	/**
+	 * @return true once a player has won, the game cannot go on until it is
+	 *         reset
+	 */
+	public boolean isOver() {
+		return this.state == State.FINISHED;
+	}
+
+	/**
+	 * @return where the game is in its lifecycle
+	 */
+	public State getState() {
+		return this.state;
 	}
 
 	/**
@@ -532,7 +864,7 @@ public class GameLogic {
 	 * @throws CommandException
 	 */
 	private void ensureNoWinner() throws CommandException {
-		if (this.playerWon) {
+		if (this.state == State.FINISHED) {
 			throw new CommandException("the game is over");
 		}
 	}
@@ -561,15 +893,20 @@ public class GameLogic {
 				&& (this.map.getMapCell(player.getLocation()).isExit())) {
 
 			// Player should not be able to move if they have won
-			if(this.playerWon)return;
+			if(this.state==State.FINISHED)return;
 
-			this.playerWon = true;
+			this.state = State.FINISHED;
 			player.win();
 			
 			// Other players  informed of their loss
-			for(int otherID=0;otherID<players.size();otherID++)
-				if(otherID!=playerID)
-					players.get(otherID).lose();
+			final Broadcaster to = this.broadcaster;
+			if(to==null){
+				for(int otherID=0;otherID<players.size();otherID++)
+					if(otherID!=playerID)
+						players.get(otherID).lose();
+			}else{
+				to.lose(listenersOf(players, playerID));
+			}
 			
 		} else if ((player.remainingAp() == 0) || player.isDead()) {
 			// Force the end of turn
@@ -580,32 +917,189 @@ public class GameLogic {
 	//Notifies players that can see 
 	private void notifyAllNearby(int playerID){
 		Location target=players.get(playerID).getLocation();
+		//Leave it to the end of clientActions
+		if(pendingNotifications!=null){
+			pendingNotifications.add(target);
+			return;
+		}
+		List<Location> targets=new ArrayList<Location>();
+		targets.add(target);
+		notifyAllNearby(playerID,targets);
+	}
+	
+	//Notifies players that can see any of the targets, each of them once
+	private void notifyAllNearby(int playerID,List<Location> targets){
 		for(int id=0;id<players.size();id++){
 			Player candidate=players.get(id);
 			//If the player is not dead, is not the same as the one provided as parameter
 			// and can see the target, he must be notified
-			if(!players.get(id).isDead()
-				&&id!=playerID
-				&&candidate.canSeeTile(target))
+			if(candidate.isDead()||id==playerID)
+				continue;
+			for(Location target:targets){
+				if(candidate.canSeeTile(target)){
 					candidate.notifyChange();
+					break;
+				}
+			}
 		}
 	}
 	
+	//The listeners of the players, except the one with the given ID
+	private static List<PlayerListener> listenersOf(List<Player> players,int exceptID){
+		List<PlayerListener> listeners=new ArrayList<PlayerListener>(players.size());
+		for(int id=0;id<players.size();id++)
+			if(id!=exceptID)
+				listeners.add(players.get(id).getListener());
+		return listeners;
+	}
+	
 	//Used when a player connects after all others have disconnected in order to give him a turn
-	private boolean allPlayersDead(){
+	private boolean allPlayersAway(){
 		if(players.size()==0)return false;
 		for(Player p:players){
-			if(!p.isDead())return false;
+			if(!isAway(p))return false;
 		}
 		return true;
 	}
 
+	//Dead and detached players cannot take a turn
+	private static boolean isAway(Player player){
+		return player.isDead()||player.isDetached();
+	}
+
+	/**
+	 * Brings a view of the whole map up to date with the tiles which have
+	 * changed since the last call. Meant for a single caller, such as the
+	 * server's UI pulling the changes at its own pace: the work is
+	 * proportional to the number of changes rather than to the size of the
+	 * map.
+	 * 
+	 * @param view
+	 *            a view from getMapView, which these calls keep up to date
+	 * @return the tiles which have changed, none if nothing has (or nobody
+	 *         has asked for a view since the last stopMapChanges)
+	 */
+	public List<Location> pullMapChanges(char[][] view) {
+		acquire();
+		try {
+			final List<Location> changed = this.dirtyTiles;
+			if (changed == null || changed.isEmpty()) {
+				return Collections.emptyList();
+			}
+			this.dirtyTiles = new ArrayList<Location>();
+			for (final Location location : changed) {
+				final int row = location.getRow();
+				final int col = location.getCol();
+				this.dirty[row][col] = false;
+				view[row][col] = otherPlayerOnTile(location, -1) ? 'P'
+						: this.map.getMapCell(location).toChar();
+			}
+			return changed;
+		} finally {
+			release();
+		}
+	}
+
+	/**
+	 * Stops keeping track of the changes to the map, once nobody pulls them
+	 * any more. The next getMapView starts again.
+	 */
+	public void stopMapChanges() {
+		acquire();
+		try {
+			this.dirtyTiles = null;
+			this.dirty = null;
+		} finally {
+			release();
+		}
+	}
+
+	/**
+	 * Remembers that the view of a tile has changed, for pullMapChanges
+	 */
+	private void markDirty(Location location) {
+		if (this.dirty == null) {
+			return;
+		}
+		final int row = location.getRow();
+		final int col = location.getCol();
+		if (!this.dirty[row][col]) {
+			this.dirty[row][col] = true;
+			this.dirtyTiles.add(location);
+		}
+	}
+
+	/**
+	 * Also starts keeping track of the changes to the map, so that
+	 * pullMapChanges can bring the view up to date, until stopMapChanges
+	 * 
+	 * @return a view of the entire map, with the players on it
+	 */
 	public char[][] getMapView() {
-		char[][] result = map.view();
-		for(Player p:players)
-			if(!p.isDead())
-				result[p.getLocation().getRow()][p.getLocation().getCol()]='P';
-		return result;
+		acquire();
+		try {
+			if (this.dirty == null) {
+				this.dirty = new boolean[this.map.getMapHeight()][this.map
+						.getMapWidth()];
+				this.dirtyTiles = new ArrayList<Location>();
+			}
+			char[][] result = map.view();
+			for(Player p:players)
+				if(!p.isDead())
+					result[p.getLocation().getRow()][p.getLocation().getCol()]='P';
+			return result;
+		} finally {
+			release();
+		}
+	}
+
+	/**
+	 * @return how many times the game lock has been acquired (ignoring
+	 *         re-entrant acquisitions)
+	 */
+	public long getLockHolds() {
+		return this.lockHolds.get();
+	}
+
+	/**
+	 * @return the mean time the game lock is held for, in nanoseconds
+	 */
+	public long getMeanLockHoldNanos() {
+		final long holds = this.lockHolds.get();
+		return (holds == 0) ? 0 : this.lockHoldNanos.get() / holds;
+	}
+
+	/**
+	 * @return the longest time the game lock has been held for, in
+	 *         nanoseconds
+	 */
+	public long getMaxLockHoldNanos() {
+		return this.maxLockHoldNanos;
+	}
+
+	/**
+	 * Acquires the game lock
+	 */
+	private void acquire() {
+		this.lock.lock();
+		if (this.lock.getHoldCount() == 1) {
+			this.lockAcquiredAt = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Releases the game lock, recording how long it was held for
+	 */
+	private void release() {
+		if (this.lock.getHoldCount() == 1) {
+			final long held = System.nanoTime() - this.lockAcquiredAt;
+			this.lockHolds.incrementAndGet();
+			this.lockHoldNanos.addAndGet(held);
+			if (held > this.maxLockHoldNanos) {
+				this.maxLockHoldNanos = held;
+			}
+		}
+		this.lock.unlock();
 	}
 }
 
@@ -1,11 +1,9 @@
 package server.game;
 
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Scanner;
 
 import server.game.items.Gold;
 
@@ -18,25 +16,26 @@ import server.game.items.Gold;
  * client and server.
  */
 public class Map {
-	// The name of the map
-	private String name;
+	// The map as it was read from the file, shared with the other games on it
+	private final MapTemplate template;
 
-	// The tiles of the map, stored in row-major order, i.e. [row][col]
-	private Tile map[][];
+	// The tiles of the map, stored in row-major order, i.e. [row][col]. The
+	// rows are the template's until a tile of theirs changes, then the game
+	// gets a copy of its own
+	private final Tile map[][];
 
-	// The number of gold required to win
-	private int goal;
+	// Whether each row has been copied from the template yet, and the rows
+	// copied so far
+	private final boolean copiedRows[];
+	private final int copiedRowList[];
+	private int copiedRowCount = 0;
 
-	// The lines containing the name and goal, and rest of the map
-	private static final int NAMELINE = 0;
-	private static final int GOALLINE = 1;
-	private static final int MAPBEGINLINE = 2;
-
-	// Minimum number of lines
-	private static final int MINLINES = 3;
+	// The cells changed since the map was read or reset
+	private List<Location> changedCells = new ArrayList<Location>();
 
 	/**
-	 * Creates a map from the file specified. Note that this is not robust...
+	 * Creates a map from the file specified. The file is only read if no
+	 * other game has read it yet. Note that this is not robust...
 	 * 
 	 * @param filename
 	 *            The name of the file to load the map from
@@ -44,23 +43,15 @@ public class Map {
 	 * @throws FileNotFoundException
 	 */
 	public Map(String filename) throws ParseException, FileNotFoundException {
-		final List<String> lines = readFile(filename);
+		this.template = MapTemplate.forFile(filename);
 
-		// Good programmers always check this...
-		if (lines.size() < MINLINES) {
-			throw new ParseException(
-					"a map file must contain at least three lines",
-					lines.size());
+		final int mapHeight = this.template.getHeight();
+		this.map = new Tile[mapHeight][];
+		for (int row = 0; row < mapHeight; row++) {
+			this.map[row] = this.template.getRow(row);
 		}
-
-		// The first line should always be the name of the map.
-		parseMapName(lines.get(NAMELINE));
-
-		// The second line should be the goal.
-		parseMapGoal(lines.get(GOALLINE));
-
-		// Read in the map data from the file
-		readMap(lines);
+		this.copiedRows = new boolean[mapHeight];
+		this.copiedRowList = new int[mapHeight];
 	}
 
 	/**
@@ -86,12 +77,38 @@ public class Map {
 		return this.map[location.getRow()][location.getCol()];
 	}
 
+	/**
+	 * Removes the item from the cell at the location, e.g. after a successful
+	 * pickup. The first change to a row copies the row from the map file's
+	 * template, the other games on the map are not affected.
+	 * 
+	 * @param location
+	 *            the location of the cell
+	 */
+	public void removeItem(Location location) {
+		final int row = location.getRow();
+		final int col = location.getCol();
+
+		if (!this.map[row][col].hasItem()) {
+			// There is no item to pick up
+			throw new IllegalStateException("there is no item to pick up");
+		}
+
+		if (!this.copiedRows[row]) {
+			this.map[row] = this.map[row].clone();
+			this.copiedRows[row] = true;
+			this.copiedRowList[this.copiedRowCount++] = row;
+		}
+		this.map[row][col] = this.map[row][col].withoutItem();
+		this.changedCells.add(location);
+	}
+
 	/**
 	 * 
 	 * @return The amount of gold required to win on this map
 	 */
 	public int getGoal() {
-		return this.goal;
+		return this.template.getGoal();
 	}
 
 	/**
@@ -112,7 +129,26 @@ public class Map {
 	 * @return The name of the map
 	 */
 	public String getName() {
-		return this.name;
+		return this.template.getName();
+	}
+
+	/**
+	 * Puts the map back as it was read from the file, for a new match. Only
+	 * the rows which have changed are touched, they are the template's again.
+	 * 
+	 * @return the cells which have been put back
+	 */
+	public List<Location> reset() {
+		for (int i = 0; i < this.copiedRowCount; i++) {
+			final int row = this.copiedRowList[i];
+			this.map[row] = this.template.getRow(row);
+			this.copiedRows[row] = false;
+		}
+		this.copiedRowCount = 0;
+
+		final List<Location> changed = this.changedCells;
+		this.changedCells = new ArrayList<Location>();
+		return changed;
 	}
 
 	/**
@@ -133,145 +169,15 @@ public class Map {
 		return goldCount;
 	}
 
-	/**
-	 * Reads in a file and returns a List of Strings. This makes life slightly
-	 * easier. NB, in Java 1.7 Files.ReadAllLines() will do the job.
-	 * 
-	 * @param filename
-	 *            The name of the file to read the map from
-	 * @return A List of lines in the file
-	 * @throws FileNotFoundException
-	 */
-	private List<String> readFile(String filename) throws FileNotFoundException {
-		Scanner scanner = null;
-
-		final List<String> lines = new ArrayList<String>();
-		try {
-			// Use a scanner to read all the lines
-			scanner = new Scanner(new FileReader(filename));
-
-			// Store all the lines in the file
-			while (scanner.hasNextLine()) {
-				lines.add(scanner.nextLine());
-			}
-		} finally {
-			if (scanner != null) {
-				scanner.close();
-			}
-		}
-
-		return lines;
-	}
 	/**
 	 * To be used for the server GUI
 	 * @return - a view of the entire map
 	 */
 	public char[][] view(){
-		char[][] view=new char[getMapHeight()][getMapHeight()];
+		char[][] view=new char[getMapHeight()][getMapWidth()];
 		for(int row=0;row<getMapHeight();row++)
 			for(int col=0;col<getMapWidth();col++)
 				view[row][col]=map[row][col].toChar();
 		return view;
 	}
-
-	/**
-	 * Reads in the map data from the file, storing the tiles to this.map
-	 * 
-	 * @param lines
-	 *            All the lines of text from the map file
-	 * @throws ParseException
-	 * @throws IllegalStateException
-	 */
-	private void readMap(List<String> lines) throws ParseException,
-			IllegalStateException {
-		// Read the rest of the map
-		final int mapWidth = lines.get(MAPBEGINLINE).length();
-		final int mapHeight = lines.size() - MAPBEGINLINE;
-
-		this.map = new Tile[mapHeight][mapWidth];
-
-		for (int row = 0; row < mapHeight; row++) {
-			final int lineNum = row + MAPBEGINLINE;
-			final String line = lines.get(lineNum);
-
-			if (line.length() != mapWidth) {
-				throw new ParseException("all lines must be the same length",
-						lineNum);
-			}
-
-			for (int col = 0; col < line.length(); col++) {
-				// Just use the character representation in the input file.
-
-				try {
-					this.map[row][col] = Tile.fromChar(line.charAt(col));
-				} catch (final IllegalArgumentException e) {
-					throw new ParseException("Invalid character (col:" + col
-							+ ")", lineNum);
-				}
-			}
-		}
-
-	}
-
-	/**
-	 * Obtains the map name from the first line of the map file
-	 * 
-	 * @param firstLine
-	 *            the first line of the map file
-	 * @throws ParseException
-	 */
-	private void parseMapName(String firstLine) throws ParseException {
-		this.name = getStringAfterTag(firstLine, "name", NAMELINE);
-	}
-
-	/**
-	 * Obtains the goal (number of cold to collect) from the second line of the
-	 * map file
-	 * 
-	 * @param secondLine
-	 *            the second line of the map file
-	 * @throws ParseException
-	 */
-	private void parseMapGoal(String secondLine) throws ParseException {
-		final String goalString = getStringAfterTag(secondLine, "win", GOALLINE);
-
-		try {
-			this.goal = Integer.parseInt(goalString);
-		} catch (final NumberFormatException e) {
-			throw new ParseException("map goal should be an integer", GOALLINE);
-		}
-	}
-
-	/**
-	 * A helper method to process a line in a file of the format <tag>
-	 * <argument> Returns the argument, if the tag is correct
-	 * 
-	 * @param line
-	 *            the line of the file to process
-	 * @param tag
-	 *            the expected tag
-	 * @param lineNum
-	 *            the line number, used to create an effective ParseException
-	 * @return the argument after the tag
-	 * @throws ParseException
-	 */
-	private String getStringAfterTag(String line, String tag, int lineNum)
-			throws ParseException {
-		// The first space will be after the tag
-		final int firstSpace = line.indexOf(" ");
-
-		// There may not be a first space
-		if (firstSpace == -1) {
-			throw new ParseException(tag + " not specified in file; the " + tag
-					+ " should be be preceded with \"" + tag + "\"", lineNum);
-		}
-
-		// Check that the tag is the first "word"
-		if (line.substring(0, firstSpace).equals(tag)) {
-			return line.substring(firstSpace + 1);
-		} else {
-			throw new ParseException("The map" + tag
-					+ "should be preceded with \"" + tag + "\"", lineNum);
-		}
-	}
 }
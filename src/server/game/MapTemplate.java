@@ -0,0 +1,274 @@
+package server.game;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A parsed map file: its name, goal and tiles as they are before anybody has
+ * played on it. A template is never changed once it has been read, so every
+ * game on the same map shares it; a game only copies the rows of tiles it
+ * changes (see Map).
+ *
+ * Templates are cached by file, a file is parsed again only once it has been
+ * modified.
+ */
+final class MapTemplate {
+	// The templates read so far, by canonical file name
+	private static final ConcurrentHashMap<String, MapTemplate> cache = new ConcurrentHashMap<String, MapTemplate>();
+
+	// The name of the map
+	private String name;
+
+	// The tiles of the map, stored in row-major order, i.e. [row][col]
+	private Tile tiles[][];
+
+	// The number of gold required to win
+	private int goal;
+
+	// When the file was modified, to tell whether the template is still
+	// up to date
+	private final long lastModified;
+
+	// The lines containing the name and goal, and rest of the map
+	private static final int NAMELINE = 0;
+	private static final int GOALLINE = 1;
+	private static final int MAPBEGINLINE = 2;
+
+	// Minimum number of lines
+	private static final int MINLINES = 3;
+
+	/**
+	 * Returns the template of a map file, reading the file only if it has
+	 * not been read yet or has been modified since
+	 *
+	 * @param filename
+	 *            The name of the file to load the map from
+	 * @return the template
+	 * @throws ParseException
+	 * @throws FileNotFoundException
+	 */
+	static MapTemplate forFile(String filename) throws ParseException,
+			FileNotFoundException {
+		final File file = new File(filename);
+		String key;
+		try {
+			key = file.getCanonicalPath();
+		} catch (final IOException e) {
+			key = file.getAbsolutePath();
+		}
+
+		final MapTemplate cached = cache.get(key);
+		if (cached != null && cached.lastModified == file.lastModified()) {
+			return cached;
+		}
+
+		// Two games reading a new file at once may both parse it, the last
+		// one to finish is kept
+		final MapTemplate template = new MapTemplate(filename,
+				file.lastModified());
+		cache.put(key, template);
+		return template;
+	}
+
+	/**
+	 * Reads a map file. Note that this is not robust...
+	 *
+	 * @param filename
+	 *            The name of the file to load the map from
+	 * @param lastModified
+	 *            when the file was modified
+	 * @throws ParseException
+	 * @throws FileNotFoundException
+	 */
+	private MapTemplate(String filename, long lastModified)
+			throws ParseException, FileNotFoundException {
+		this.lastModified = lastModified;
+
+		final List<String> lines = readFile(filename);
+
+		// Good programmers always check this...
+		if (lines.size() < MINLINES) {
+			throw new ParseException(
+					"a map file must contain at least three lines",
+					lines.size());
+		}
+
+		// The first line should always be the name of the map.
+		parseMapName(lines.get(NAMELINE));
+
+		// The second line should be the goal.
+		parseMapGoal(lines.get(GOALLINE));
+
+		// Read in the map data from the file
+		readMap(lines);
+	}
+
+	/**
+	 * @return The name of the map
+	 */
+	String getName() {
+		return this.name;
+	}
+
+	/**
+	 * @return The amount of gold required to win on this map
+	 */
+	int getGoal() {
+		return this.goal;
+	}
+
+	/**
+	 * @return The number of rows of the map
+	 */
+	int getHeight() {
+		return this.tiles.length;
+	}
+
+	/**
+	 * Gives out a row of tiles. The row is shared and must not be changed.
+	 *
+	 * @param row
+	 * @return the tiles of the row
+	 */
+	Tile[] getRow(int row) {
+		return this.tiles[row];
+	}
+
+	/**
+	 * Reads in a file and returns a List of Strings. This makes life slightly
+	 * easier. NB, in Java 1.7 Files.ReadAllLines() will do the job.
+	 *
+	 * @param filename
+	 *            The name of the file to read the map from
+	 * @return A List of lines in the file
+	 * @throws FileNotFoundException
+	 */
+	private List<String> readFile(String filename) throws FileNotFoundException {
+		Scanner scanner = null;
+
+		final List<String> lines = new ArrayList<String>();
+		try {
+			// Use a scanner to read all the lines
+			scanner = new Scanner(new FileReader(filename));
+
+			// Store all the lines in the file
+			while (scanner.hasNextLine()) {
+				lines.add(scanner.nextLine());
+			}
+		} finally {
+			if (scanner != null) {
+				scanner.close();
+			}
+		}
+
+		return lines;
+	}
+
+	/**
+	 * Reads in the map data from the file, storing the tiles to this.tiles
+	 *
+	 * @param lines
+	 *            All the lines of text from the map file
+	 * @throws ParseException
+	 * @throws IllegalStateException
+	 */
+	private void readMap(List<String> lines) throws ParseException,
+			IllegalStateException {
+		// Read the rest of the map
+		final int mapWidth = lines.get(MAPBEGINLINE).length();
+		final int mapHeight = lines.size() - MAPBEGINLINE;
+
+		this.tiles = new Tile[mapHeight][mapWidth];
+
+		for (int row = 0; row < mapHeight; row++) {
+			final int lineNum = row + MAPBEGINLINE;
+			final String line = lines.get(lineNum);
+
+			if (line.length() != mapWidth) {
+				throw new ParseException("all lines must be the same length",
+						lineNum);
+			}
+
+			for (int col = 0; col < line.length(); col++) {
+				// Just use the character representation in the input file.
+
+				try {
+					this.tiles[row][col] = Tile.fromChar(line.charAt(col));
+				} catch (final IllegalArgumentException e) {
+					throw new ParseException("Invalid character (col:" + col
+							+ ")", lineNum);
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * Obtains the map name from the first line of the map file
+	 *
+	 * @param firstLine
+	 *            the first line of the map file
+	 * @throws ParseException
+	 */
+	private void parseMapName(String firstLine) throws ParseException {
+		this.name = getStringAfterTag(firstLine, "name", NAMELINE);
+	}
+
+	/**
+	 * Obtains the goal (number of cold to collect) from the second line of the
+	 * map file
+	 *
+	 * @param secondLine
+	 *            the second line of the map file
+	 * @throws ParseException
+	 */
+	private void parseMapGoal(String secondLine) throws ParseException {
+		final String goalString = getStringAfterTag(secondLine, "win", GOALLINE);
+
+		try {
+			this.goal = Integer.parseInt(goalString);
+		} catch (final NumberFormatException e) {
+			throw new ParseException("map goal should be an integer", GOALLINE);
+		}
+	}
+
+	/**
+	 * A helper method to process a line in a file of the format <tag>
+	 * <argument> Returns the argument, if the tag is correct
+	 *
+	 * @param line
+	 *            the line of the file to process
+	 * @param tag
+	 *            the expected tag
+	 * @param lineNum
+	 *            the line number, used to create an effective ParseException
+	 * @return the argument after the tag
+	 * @throws ParseException
+	 */
+	private String getStringAfterTag(String line, String tag, int lineNum)
+			throws ParseException {
+		// The first space will be after the tag
+		final int firstSpace = line.indexOf(" ");
+
+		// There may not be a first space
+		if (firstSpace == -1) {
+			throw new ParseException(tag + " not specified in file; the " + tag
+					+ " should be be preceded with \"" + tag + "\"", lineNum);
+		}
+
+		// Check that the tag is the first "word"
+		if (line.substring(0, firstSpace).equals(tag)) {
+			return line.substring(firstSpace + 1);
+		} else {
+			throw new ParseException("The map" + tag
+					+ "should be preceded with \"" + tag + "\"", lineNum);
+		}
+	}
+}
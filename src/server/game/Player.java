@@ -20,7 +20,15 @@ public class Player implements GameItemConsumer {
 	boolean defaultName = true;
 
 	// The player may be "listened to" to interpret updates
-	private final PlayerListener listener;
+	private PlayerListener listener;
+
+	// Set while the player's connection is gone, but the player is kept in
+	// the game in case it comes back
+	private boolean detached = false;
+
+	// Set once the player's client has left the game, the player does not
+	// come back when a new match starts
+	private boolean left = false;
 
 	// Location on the map
 	private Location location;
@@ -29,13 +37,16 @@ public class Player implements GameItemConsumer {
 	private int gold = 0;
 
 	// Player attribute value things
-	private int hp = 3;
+	private int hp = defaultHp;
 	private int ap = 0;
 
 	// Items the player has
 	List<GameItem> items;
 
 	// Constants
+	// How many HP does a player start with
+	private static final int defaultHp = 3;
+
 	// How many AP does a player have by default
 	private static final int defaultAP = 6;
 
@@ -85,6 +96,31 @@ public class Player implements GameItemConsumer {
 	public PlayerListener getListener(){
 		return listener;
 	}
+
+	/**
+	 * Hands the player over to a new listener, e.g. when it has reconnected
+	 * 
+	 * @param listener
+	 */
+	void setListener(PlayerListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * @return true while the player's connection is gone, but the player is
+	 *         kept in the game
+	 */
+	public boolean isDetached() {
+		return this.detached;
+	}
+
+	/**
+	 * @param detached
+	 *            whether the player's connection is gone
+	 */
+	void setDetached(boolean detached) {
+		this.detached = detached;
+	}
 	
 	/**
 	 * Sets the name of the player
@@ -334,6 +370,57 @@ public class Player implements GameItemConsumer {
 		this.hp = 0;
 	}
 
+	/**
+	 * Kills the player for good, its client has left the game
+	 */
+	void leave() {
+		kill();
+		this.left = true;
+	}
+
+	/**
+	 * @return true once the player's client has left the game
+	 */
+	public boolean hasLeft() {
+		return this.left;
+	}
+
+	/**
+	 * Tells the player that a new match has started
+	 * 
+	 * @param goal
+	 *            the gold needed to win it
+	 */
+	void newMatch(int goal) {
+		this.listener.newMatch(goal);
+	}
+
+	/**
+	 * Brings the player back for a new match: at full health, without gold
+	 * or items, and without a turn. The listener is told what the player has
+	 * lost or got back.
+	 * 
+	 * @param location
+	 *            where the player starts the match
+	 */
+	void respawn(Location location) {
+		this.location = location;
+		this.items.clear();
+		this.ap = 0;
+
+		final int gold = this.gold;
+		this.gold = 0;
+		if (gold != 0) {
+			this.listener.treasureChange(-gold);
+		}
+
+		final int hp = defaultHp - Math.max(this.hp, 0);
+		this.hp = defaultHp;
+		if (hp != 0) {
+			this.listener.hpChange(hp);
+		}
+	}
+
 	/**
 	 * Reset the player's AP to the initial value.
 	 */
@@ -33,6 +33,15 @@ public interface PlayerListener {
 	public void win();
 	
 	public void lose();
+
+	/**
+	 * Informs the listener that a new match has started, the player starts it
+	 * over
+	 * 
+	 * @param goal
+	 *            the amount of gold needed to win
+	 */
+	public void newMatch(int goal);
 	
 	/**
 	 * Inform the listener of any changes made by nearby visible players
@@ -0,0 +1,59 @@
+package server.game;
+
+/**
+ * What a player could see when it looked: a square of tiles centred on the
+ * player's location, as sent in a LOOKREPLY.
+ */
+public class PlayerView {
+	private final Location centre;
+	private final char[][] tiles;
+
+	/**
+	 * @param centre
+	 *            the location of the player when it looked
+	 * @param tiles
+	 *            the visible tiles, row by row
+	 */
+	PlayerView(Location centre, char[][] tiles) {
+		this.centre = centre;
+		this.tiles = tiles;
+	}
+
+	/**
+	 *
+	 * @return the location of the player when it looked
+	 */
+	public Location getCentre() {
+		return this.centre;
+	}
+
+	/**
+	 *
+	 * @return the number of rows (and columns) in the view
+	 */
+	public int getSize() {
+		return this.tiles.length;
+	}
+
+	/**
+	 *
+	 * @param row
+	 * @param col
+	 * @return the tile at the given position in the view
+	 */
+	public char getTile(int row, int col) {
+		return this.tiles[row][col];
+	}
+
+	/**
+	 * The body of a LOOKREPLY, a line per row
+	 */
+	@Override
+	public String toString() {
+		final StringBuilder lookReply = new StringBuilder();
+		for (final char[] row : this.tiles) {
+			lookReply.append(row).append(System.getProperty("line.separator"));
+		}
+		return lookReply.toString();
+	}
+}
@@ -3,7 +3,9 @@ package server.game;
 import server.game.items.GameItem;
 
 /**
- * An class to represent the tiles on the Map.
+ * An class to represent the tiles on the Map. Tiles do not change, so the
+ * tiles read from a map file are shared by every game on the map; a tile
+ * losing its item is replaced by one without it.
  */
 public class Tile {
 
@@ -35,7 +37,11 @@ public class Tile {
 	private final TileType type;
 
 	// A tile may contain an item
-	private GameItem item = null;
+	private final GameItem item;
+
+	// The tiles of each character, tiles are shared rather than created for
+	// every cell (items do not hold any state of their own either)
+	private static final Tile[] shared = new Tile[128];
 
 	/**
 	 * Creates a tile without an item
@@ -45,6 +51,7 @@ public class Tile {
 	 */
 	public Tile(TileType type) {
 		this.type = type;
+		this.item = null;
 	}
 
 	/**
@@ -55,8 +62,7 @@ public class Tile {
 	 */
 	public Tile(GameItem item) {
 		// Only a floor tile can have an item
-		this(TileType.FLOOR);
-
+		this.type = TileType.FLOOR;
 		this.item = item;
 	}
 
@@ -109,14 +115,17 @@ public class Tile {
 	}
 
 	/**
-	 * Removes the item from the tile, e.g. after a successful pickup.
+	 * Gives the tile left once the item has been removed, e.g. after a
+	 * successful pickup. The tile itself does not change.
+	 * 
+	 * @return the tile without the item
 	 */
-	public void removeItem() {
+	public Tile withoutItem() {
 		if (this.item == null) {
 			// There is no item to pick up
 			throw new IllegalStateException("there is no item to pick up");
 		} else {
-			this.item = null;
+			return fromChar(this.type.toChar());
 		}
 	}
 
@@ -125,9 +134,27 @@ public class Tile {
 	 * 
 	 * @param ch
 	 *            the character representing the map tile
-	 * @return the Tile object corresponding to the character
+	 * @return the Tile object corresponding to the character, shared with
+	 *         the other cells of that character
 	 */
 	public static Tile fromChar(char character) {
+		if (character >= shared.length) {
+			// Not a character any map uses
+			return create(character);
+		}
+
+		Tile tile = shared[character];
+		if (tile != null) {
+			return tile;
+		}
+
+		tile = create(character);
+		// A race only creates an extra tile, either one will do
+		shared[character] = tile;
+		return tile;
+	}
+
+	private static Tile create(char character) {
 		for (final TileType type : TileType.values()) {
 			if (character == type.toChar()) {
 				return new Tile(type);